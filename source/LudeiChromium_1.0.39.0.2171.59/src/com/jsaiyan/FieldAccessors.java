@@ -0,0 +1,316 @@
+/*
+ * JSaiyan is licensed under MIT licensed. See LICENSE.md file for more information.
+ * Copyright (c) 2014 MortimerGoro
+*/
+
+package com.jsaiyan;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pre-bound, primitive specialized accessors for volatile instance fields.
+ *
+ * Accessors are backed by the java.util.concurrent.atomic field updaters, which the runtime
+ * implements on top of Unsafe without reflection or boxing per call. They are resolved once per
+ * (class, field name) and cached. Only volatile fields are supported: the updaters require it,
+ * and the reflective fallbacks for plain fields cost as much as the Method.invoke path this class
+ * is meant to avoid. The updaters also check access, so runtimes that enforce it need the field
+ * to be visible from this class. {@link RuntimeUnsafeWrapper} and {@link Unsafe} are unchanged
+ * and still invoke reflectively on every call.
+ */
+public final class FieldAccessors {
+
+    /**
+     * Accessor for an <code>int</code> instance field.
+     */
+    public static abstract class IntAccessor {
+        public abstract int get(Object obj);
+        public abstract int getVolatile(Object obj);
+        public abstract void putVolatile(Object obj, int newValue);
+        /**
+         * Lazy set the field.
+         */
+        public abstract void putOrdered(Object obj, int newValue);
+        public abstract boolean compareAndSwap(Object obj, int expectedValue, int newValue);
+    }
+
+    /**
+     * Accessor for a <code>long</code> instance field.
+     */
+    public static abstract class LongAccessor {
+        public abstract long get(Object obj);
+        public abstract long getVolatile(Object obj);
+        public abstract void putVolatile(Object obj, long newValue);
+        /**
+         * Lazy set the field.
+         */
+        public abstract void putOrdered(Object obj, long newValue);
+        public abstract boolean compareAndSwap(Object obj, long expectedValue, long newValue);
+    }
+
+    /**
+     * Accessor for an <code>Object</code> (reference) instance field.
+     */
+    public static abstract class ObjectAccessor {
+        public abstract Object get(Object obj);
+        public abstract Object getVolatile(Object obj);
+        public abstract void putVolatile(Object obj, Object newValue);
+        /**
+         * Lazy set the field.
+         */
+        public abstract void putOrdered(Object obj, Object newValue);
+        public abstract boolean compareAndSwap(Object obj, Object expectedValue, Object newValue);
+    }
+
+    // Accessors by declaring class, then by field name.
+    private static final ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, Object>>
+            sAccessors = new ConcurrentHashMap<Class<?>, ConcurrentHashMap<String, Object>>();
+
+    private static final Object sWrapperLock = new Object();
+    private static boolean sWrapperResolved;
+    private static RuntimeUnsafeWrapper sWrapper;
+
+    private FieldAccessors() {
+    }
+
+    /**
+     * Gets the cached accessor for an <code>int</code> field, resolving it on first use.
+     * @param clazz the class declaring the field
+     * @param name the name of a volatile instance field
+     * @return the accessor
+     */
+    public static IntAccessor forInt(Class<?> clazz, String name) {
+        Object accessor = lookup(clazz, name);
+        if (accessor == null) {
+            accessor = cache(clazz, name, createIntAccessor(findField(clazz, name, int.class)));
+        }
+        return (IntAccessor) accessor;
+    }
+
+    /**
+     * Gets the cached accessor for a <code>long</code> field, resolving it on first use.
+     * @param clazz the class declaring the field
+     * @param name the name of a volatile instance field
+     * @return the accessor
+     */
+    public static LongAccessor forLong(Class<?> clazz, String name) {
+        Object accessor = lookup(clazz, name);
+        if (accessor == null) {
+            accessor = cache(clazz, name, createLongAccessor(findField(clazz, name, long.class)));
+        }
+        return (LongAccessor) accessor;
+    }
+
+    /**
+     * Gets the cached accessor for a reference field, resolving it on first use.
+     * @param clazz the class declaring the field
+     * @param name the name of a volatile instance field
+     * @return the accessor
+     */
+    public static ObjectAccessor forObject(Class<?> clazz, String name) {
+        Object accessor = lookup(clazz, name);
+        if (accessor == null) {
+            accessor = cache(clazz, name, createObjectAccessor(findField(clazz, name, null)));
+        }
+        return (ObjectAccessor) accessor;
+    }
+
+    /**
+     * Parks the calling thread. See {@link RuntimeUnsafeWrapper#park(boolean, long)}.
+     */
+    public static void park(boolean absolute, long time) {
+        if (absolute) {
+            LockSupport.parkUntil(time);
+        } else if (time == 0) {
+            LockSupport.park();
+        } else {
+            LockSupport.parkNanos(time);
+        }
+    }
+
+    /**
+     * Unparks the given thread. See {@link RuntimeUnsafeWrapper#unpark(Object)}.
+     */
+    public static void unpark(Object thread) {
+        LockSupport.unpark((Thread) thread);
+    }
+
+    /**
+     * Returns the shared RuntimeUnsafeWrapper or null if sun.misc.Unsafe is not available.
+     */
+    static RuntimeUnsafeWrapper unsafeWrapper() {
+        synchronized (sWrapperLock) {
+            if (!sWrapperResolved) {
+                sWrapperResolved = true;
+                try {
+                    sWrapper = new RuntimeUnsafeWrapper();
+                }
+                catch (Exception ex) {
+                    sWrapper = null;
+                }
+            }
+            return sWrapper;
+        }
+    }
+
+    private static Object lookup(Class<?> clazz, String name) {
+        ConcurrentHashMap<String, Object> accessors = sAccessors.get(clazz);
+        return accessors != null ? accessors.get(name) : null;
+    }
+
+    private static Object cache(Class<?> clazz, String name, Object accessor) {
+        ConcurrentHashMap<String, Object> accessors = sAccessors.get(clazz);
+        if (accessors == null) {
+            accessors = new ConcurrentHashMap<String, Object>();
+            ConcurrentHashMap<String, Object> previous = sAccessors.putIfAbsent(clazz, accessors);
+            if (previous != null) accessors = previous;
+        }
+        Object previous = accessors.putIfAbsent(name, accessor);
+        return previous != null ? previous : accessor;
+    }
+
+    private static Field findField(Class<?> clazz, String name, Class<?> type) {
+        Field field;
+        try {
+            field = clazz.getDeclaredField(name);
+        }
+        catch (NoSuchFieldException ex) {
+            throw new IllegalArgumentException(ex);
+        }
+        if ((field.getModifiers() & Modifier.STATIC) != 0) {
+            throw new IllegalArgumentException("Field must not be static: " + name);
+        }
+        if ((field.getModifiers() & Modifier.VOLATILE) == 0) {
+            throw new IllegalArgumentException("Field must be volatile: " + name);
+        }
+        if (type != null ? field.getType() != type : field.getType().isPrimitive()) {
+            throw new IllegalArgumentException("Unexpected field type for " + name + ": "
+                    + field.getType());
+        }
+        return field;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static IntAccessor createIntAccessor(Field field) {
+        return new UpdaterIntAccessor(AtomicIntegerFieldUpdater.newUpdater(
+                (Class) field.getDeclaringClass(), field.getName()));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static LongAccessor createLongAccessor(Field field) {
+        return new UpdaterLongAccessor(AtomicLongFieldUpdater.newUpdater(
+                (Class) field.getDeclaringClass(), field.getName()));
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ObjectAccessor createObjectAccessor(Field field) {
+        return new UpdaterObjectAccessor(AtomicReferenceFieldUpdater.newUpdater(
+                (Class) field.getDeclaringClass(), (Class) field.getType(),
+                field.getName()));
+    }
+
+    private static final class UpdaterIntAccessor extends IntAccessor {
+        private final AtomicIntegerFieldUpdater<Object> mUpdater;
+
+        UpdaterIntAccessor(AtomicIntegerFieldUpdater<Object> updater) {
+            mUpdater = updater;
+        }
+
+        @Override
+        public int get(Object obj) {
+            return mUpdater.get(obj);
+        }
+
+        @Override
+        public int getVolatile(Object obj) {
+            return mUpdater.get(obj);
+        }
+
+        @Override
+        public void putVolatile(Object obj, int newValue) {
+            mUpdater.set(obj, newValue);
+        }
+
+        @Override
+        public void putOrdered(Object obj, int newValue) {
+            mUpdater.lazySet(obj, newValue);
+        }
+
+        @Override
+        public boolean compareAndSwap(Object obj, int expectedValue, int newValue) {
+            return mUpdater.compareAndSet(obj, expectedValue, newValue);
+        }
+    }
+
+    private static final class UpdaterLongAccessor extends LongAccessor {
+        private final AtomicLongFieldUpdater<Object> mUpdater;
+
+        UpdaterLongAccessor(AtomicLongFieldUpdater<Object> updater) {
+            mUpdater = updater;
+        }
+
+        @Override
+        public long get(Object obj) {
+            return mUpdater.get(obj);
+        }
+
+        @Override
+        public long getVolatile(Object obj) {
+            return mUpdater.get(obj);
+        }
+
+        @Override
+        public void putVolatile(Object obj, long newValue) {
+            mUpdater.set(obj, newValue);
+        }
+
+        @Override
+        public void putOrdered(Object obj, long newValue) {
+            mUpdater.lazySet(obj, newValue);
+        }
+
+        @Override
+        public boolean compareAndSwap(Object obj, long expectedValue, long newValue) {
+            return mUpdater.compareAndSet(obj, expectedValue, newValue);
+        }
+    }
+
+    private static final class UpdaterObjectAccessor extends ObjectAccessor {
+        private final AtomicReferenceFieldUpdater<Object, Object> mUpdater;
+
+        UpdaterObjectAccessor(AtomicReferenceFieldUpdater<Object, Object> updater) {
+            mUpdater = updater;
+        }
+
+        @Override
+        public Object get(Object obj) {
+            return mUpdater.get(obj);
+        }
+
+        @Override
+        public Object getVolatile(Object obj) {
+            return mUpdater.get(obj);
+        }
+
+        @Override
+        public void putVolatile(Object obj, Object newValue) {
+            mUpdater.set(obj, newValue);
+        }
+
+        @Override
+        public void putOrdered(Object obj, Object newValue) {
+            mUpdater.lazySet(obj, newValue);
+        }
+
+        @Override
+        public boolean compareAndSwap(Object obj, Object expectedValue, Object newValue) {
+            return mUpdater.compareAndSet(obj, expectedValue, newValue);
+        }
+    }
+}
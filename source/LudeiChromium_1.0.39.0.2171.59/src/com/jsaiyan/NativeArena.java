@@ -0,0 +1,293 @@
+/*
+ * JSaiyan is licensed under MIT licensed. See LICENSE.md file for more information.
+ * Copyright (c) 2014 MortimerGoro
+*/
+
+package com.jsaiyan;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Off-heap arena allocator.
+ *
+ * Memory is carved out of large native ordered slabs with a bump pointer. Released blocks go
+ * back to power of two size-classed free lists and are reused by later allocations of the same
+ * class, so per frame buffers (vertices, audio) do not allocate new direct ByteBuffers.
+ * {@link #close()} releases every block of the arena at once.
+ *
+ * The memory of a slab is only returned to the system when its direct ByteBuffer is garbage
+ * collected. close() drops the arena's references to its slabs, so native code must not keep
+ * addresses into them past close().
+ *
+ * Slabs are direct ByteBuffers instead of raw {@link Unsafe#malloc(long)} blocks: the native side
+ * can still get their address with GetDirectBufferAddress, while Java gets typed access, which
+ * Unsafe cannot offer for raw addresses.
+ *
+ * An arena is not thread safe. Use {@link #forCurrentThread()} to get the per-thread cached arena
+ * or confine explicitly created arenas to a single thread.
+ */
+public class NativeArena {
+
+    private static final String TAG = "NativeArena";
+
+    /**
+     * Default slab size: 1MB
+     */
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    /**
+     * Smallest size class, also the alignment of every block
+     */
+    private static final int MIN_BLOCK_SHIFT = 4;
+
+    /**
+     * Largest block: 1GB, the largest power of two size class an int can hold
+     */
+    public static final int MAX_ALLOCATION_SIZE = 1 << 30;
+
+    private static boolean sBoundsChecking = true;
+    private static boolean sLeakTracking = false;
+
+    private static final ThreadLocal<NativeArena> sThreadArena = new ThreadLocal<NativeArena>() {
+        @Override
+        protected NativeArena initialValue() {
+            return new NativeArena(DEFAULT_SLAB_SIZE);
+        }
+    };
+
+    private final int mSlabSize;
+    private final ArrayList<ByteBuffer> mSlabs = new ArrayList<ByteBuffer>();
+    private ByteBuffer mCurrentSlab;
+    private int mBumpOffset;
+    private final ArrayList<ArrayList<NativeBlock>> mFreeLists = new ArrayList<ArrayList<NativeBlock>>();
+    private final Map<NativeBlock, Throwable> mLiveBlocks = new IdentityHashMap<NativeBlock, Throwable>();
+    private int mOutstanding;
+    private long mReservedBytes;
+    private boolean mClosed;
+
+    /**
+     * Creates an arena
+     * @param slabSize size in bytes of each backing slab. Requests bigger than this get a
+     * dedicated buffer.
+     */
+    public NativeArena(int slabSize) {
+        if (slabSize < (1 << MIN_BLOCK_SHIFT)) {
+            throw new IllegalArgumentException("Slab size too small: " + slabSize);
+        }
+        mSlabSize = slabSize;
+    }
+
+    /**
+     * Gets the arena cached for the calling thread
+     * @return
+     */
+    public static NativeArena forCurrentThread() {
+        NativeArena arena = sThreadArena.get();
+        if (arena.mClosed) {
+            arena = new NativeArena(DEFAULT_SLAB_SIZE);
+            sThreadArena.set(arena);
+        }
+        return arena;
+    }
+
+    /**
+     * Enables or disables bounds checking on {@link NativeBlock} accessors.
+     * Release builds can turn it off once callers have been validated.
+     * @param enabled
+     */
+    public static void setBoundsChecking(boolean enabled) {
+        sBoundsChecking = enabled;
+    }
+
+    static boolean isBoundsChecking() {
+        return sBoundsChecking;
+    }
+
+    /**
+     * Enables or disables leak tracking. When enabled every allocation records the stack that
+     * made it, and {@link #reportLeaks()} lists the blocks that are still outstanding.
+     * Only allocations made while tracking is enabled are tracked.
+     * @param enabled
+     */
+    public static void setLeakTracking(boolean enabled) {
+        sLeakTracking = enabled;
+    }
+
+    /**
+     * Allocates a block
+     * @param sizeInBytes
+     * @return the block, its contents are not cleared
+     */
+    public NativeBlock allocate(int sizeInBytes) {
+        if (mClosed) throw new IllegalStateException("Arena is closed");
+        if (sizeInBytes < 0) throw new IllegalArgumentException("Negative size: " + sizeInBytes);
+        if (sizeInBytes > MAX_ALLOCATION_SIZE) {
+            throw new IllegalArgumentException("Size too large: " + sizeInBytes);
+        }
+
+        int sizeClass = sizeClassOf(sizeInBytes);
+        int capacity = 1 << sizeClass;
+        NativeBlock block;
+        if (capacity > mSlabSize) {
+            ByteBuffer dedicated = ByteBuffer.allocateDirect(sizeInBytes).order(ByteOrder.nativeOrder());
+            mReservedBytes += sizeInBytes;
+            block = new NativeBlock(this, dedicated, 0, sizeInBytes, -1);
+        } else {
+            block = takeFree(sizeClass);
+            if (block == null) {
+                block = bumpAllocate(capacity, sizeClass);
+            }
+        }
+        block.reset(sizeInBytes);
+        mOutstanding++;
+        if (sLeakTracking) {
+            mLiveBlocks.put(block, new Throwable("NativeBlock of " + sizeInBytes + " bytes allocated here"));
+        }
+        return block;
+    }
+
+    /**
+     * Allocates a block able to hold <code>count</code> ints
+     */
+    public NativeBlock allocateInts(int count) {
+        return allocate(byteSize(count, 4));
+    }
+
+    /**
+     * Allocates a block able to hold <code>count</code> longs
+     */
+    public NativeBlock allocateLongs(int count) {
+        return allocate(byteSize(count, 8));
+    }
+
+    /**
+     * Allocates a block able to hold <code>count</code> floats
+     */
+    public NativeBlock allocateFloats(int count) {
+        return allocate(byteSize(count, 4));
+    }
+
+    /**
+     * Allocates a block able to hold <code>count</code> doubles
+     */
+    public NativeBlock allocateDoubles(int count) {
+        return allocate(byteSize(count, 8));
+    }
+
+    /**
+     * Returns the block to its size class free list. Called by {@link NativeBlock#release()}.
+     * Does nothing once the arena is closed.
+     */
+    void release(NativeBlock block) {
+        if (mClosed) return;
+        mOutstanding--;
+        mLiveBlocks.remove(block);
+        if (block.mSizeClass < 0) {
+            mReservedBytes -= block.capacity();
+            return;
+        }
+        freeList(block.mSizeClass).add(block);
+    }
+
+    /**
+     * Releases every block and slab of this arena. Every block handed out by the arena, tracked
+     * or not, becomes invalid: accessors throw and {@link NativeBlock#release()} does nothing.
+     * The slab memory itself is freed when the slabs are garbage collected.
+     */
+    public void close() {
+        if (mClosed) return;
+        if (sLeakTracking && !mLiveBlocks.isEmpty()) {
+            reportLeaks();
+        }
+        // Blocks check this flag, so they do not need to be visited.
+        mClosed = true;
+        mLiveBlocks.clear();
+        mFreeLists.clear();
+        mSlabs.clear();
+        mCurrentSlab = null;
+        mOutstanding = 0;
+        mReservedBytes = 0;
+    }
+
+    /**
+     * Logs the blocks that were allocated while leak tracking was enabled and not released yet.
+     * @return the number of reported blocks
+     */
+    public int reportLeaks() {
+        for (Map.Entry<NativeBlock, Throwable> entry : mLiveBlocks.entrySet()) {
+            Log.w(TAG, "Outstanding " + entry.getKey(), entry.getValue());
+        }
+        return mLiveBlocks.size();
+    }
+
+    /**
+     * @return the number of blocks allocated and not released yet
+     */
+    public int getOutstandingAllocations() {
+        return mOutstanding;
+    }
+
+    /**
+     * @return bytes reserved from the system by this arena (slabs plus dedicated buffers)
+     */
+    public long getReservedBytes() {
+        return mReservedBytes;
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Multiplies without wrapping around, as Math.multiplyExact() would.
+     */
+    private static int byteSize(int count, int elementSize) {
+        if (count < 0) throw new IllegalArgumentException("Negative count: " + count);
+        if (count > MAX_ALLOCATION_SIZE / elementSize) {
+            throw new IllegalArgumentException("Count too large: " + count);
+        }
+        return count * elementSize;
+    }
+
+    private static int sizeClassOf(int sizeInBytes) {
+        if (sizeInBytes <= (1 << MIN_BLOCK_SHIFT)) return MIN_BLOCK_SHIFT;
+        return 32 - Integer.numberOfLeadingZeros(sizeInBytes - 1);
+    }
+
+    private ArrayList<NativeBlock> freeList(int sizeClass) {
+        while (mFreeLists.size() <= sizeClass) {
+            mFreeLists.add(null);
+        }
+        ArrayList<NativeBlock> list = mFreeLists.get(sizeClass);
+        if (list == null) {
+            list = new ArrayList<NativeBlock>();
+            mFreeLists.set(sizeClass, list);
+        }
+        return list;
+    }
+
+    private NativeBlock takeFree(int sizeClass) {
+        if (sizeClass >= mFreeLists.size()) return null;
+        ArrayList<NativeBlock> list = mFreeLists.get(sizeClass);
+        if (list == null || list.isEmpty()) return null;
+        return list.remove(list.size() - 1);
+    }
+
+    private NativeBlock bumpAllocate(int capacity, int sizeClass) {
+        if (mCurrentSlab == null || mBumpOffset + capacity > mSlabSize) {
+            mCurrentSlab = ByteBuffer.allocateDirect(mSlabSize).order(ByteOrder.nativeOrder());
+            mSlabs.add(mCurrentSlab);
+            mReservedBytes += mSlabSize;
+            mBumpOffset = 0;
+        }
+        NativeBlock block = new NativeBlock(this, mCurrentSlab, mBumpOffset, capacity, sizeClass);
+        mBumpOffset += capacity;
+        return block;
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * JSaiyan is licensed under MIT licensed. See LICENSE.md file for more information.
+ * Copyright (c) 2014 MortimerGoro
+*/
+
+package com.jsaiyan;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+
+/**
+ * A block of off-heap memory handed out by a {@link NativeArena}.
+ *
+ * Element indices of the typed accessors are relative to the start of the block. Bounds are
+ * checked against the requested size unless disabled with
+ * {@link NativeArena#setBoundsChecking(boolean)}.
+ * The views returned by {@link #buffer()} and the as*Buffer() methods are created once per block
+ * and reused when the block is recycled by the arena.
+ */
+public final class NativeBlock {
+
+    private final NativeArena mArena;
+    private final ByteBuffer mSlab;
+    private final int mOffset;
+    private final int mCapacity;
+    final int mSizeClass;
+    private int mSize;
+    private boolean mReleased;
+
+    private ByteBuffer mBuffer;
+    private IntBuffer mIntBuffer;
+    private LongBuffer mLongBuffer;
+    private FloatBuffer mFloatBuffer;
+    private DoubleBuffer mDoubleBuffer;
+
+    NativeBlock(NativeArena arena, ByteBuffer slab, int offset, int capacity, int sizeClass) {
+        mArena = arena;
+        mSlab = slab;
+        mOffset = offset;
+        mCapacity = capacity;
+        mSizeClass = sizeClass;
+    }
+
+    void reset(int size) {
+        mSize = size;
+        mReleased = false;
+    }
+
+    /**
+     * Returns the block to its arena for reuse. The block must not be used afterwards.
+     * Does nothing if the arena was closed.
+     */
+    public void release() {
+        if (mArena.isClosed()) return;
+        if (mReleased) throw new IllegalStateException("NativeBlock already released");
+        mReleased = true;
+        mArena.release(this);
+    }
+
+    /**
+     * @return the requested size in bytes
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the usable size in bytes (the size class of the block)
+     */
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Gets a native ordered ByteBuffer spanning the whole block, suitable to pass to native
+     * code. Position and limit are reset to the requested size on every call.
+     */
+    public ByteBuffer buffer() {
+        checkValid();
+        if (mBuffer == null) {
+            ByteBuffer dup = mSlab.duplicate();
+            dup.limit(mOffset + mCapacity).position(mOffset);
+            mBuffer = dup.slice().order(ByteOrder.nativeOrder());
+        }
+        mBuffer.clear();
+        mBuffer.limit(mSize);
+        return mBuffer;
+    }
+
+    public IntBuffer asIntBuffer() {
+        if (mIntBuffer == null) mIntBuffer = fullBuffer().asIntBuffer();
+        mIntBuffer.clear();
+        mIntBuffer.limit(mSize / 4);
+        return mIntBuffer;
+    }
+
+    public LongBuffer asLongBuffer() {
+        if (mLongBuffer == null) mLongBuffer = fullBuffer().asLongBuffer();
+        mLongBuffer.clear();
+        mLongBuffer.limit(mSize / 8);
+        return mLongBuffer;
+    }
+
+    public FloatBuffer asFloatBuffer() {
+        if (mFloatBuffer == null) mFloatBuffer = fullBuffer().asFloatBuffer();
+        mFloatBuffer.clear();
+        mFloatBuffer.limit(mSize / 4);
+        return mFloatBuffer;
+    }
+
+    public DoubleBuffer asDoubleBuffer() {
+        if (mDoubleBuffer == null) mDoubleBuffer = fullBuffer().asDoubleBuffer();
+        mDoubleBuffer.clear();
+        mDoubleBuffer.limit(mSize / 8);
+        return mDoubleBuffer;
+    }
+
+    public int getInt(int index) {
+        return mSlab.getInt(byteOffset(index, 4));
+    }
+
+    public void putInt(int index, int value) {
+        mSlab.putInt(byteOffset(index, 4), value);
+    }
+
+    public long getLong(int index) {
+        return mSlab.getLong(byteOffset(index, 8));
+    }
+
+    public void putLong(int index, long value) {
+        mSlab.putLong(byteOffset(index, 8), value);
+    }
+
+    public float getFloat(int index) {
+        return mSlab.getFloat(byteOffset(index, 4));
+    }
+
+    public void putFloat(int index, float value) {
+        mSlab.putFloat(byteOffset(index, 4), value);
+    }
+
+    public double getDouble(int index) {
+        return mSlab.getDouble(byteOffset(index, 8));
+    }
+
+    public void putDouble(int index, double value) {
+        mSlab.putDouble(byteOffset(index, 8), value);
+    }
+
+    /**
+     * Bulk copies <code>length</code> ints from <code>src</code> starting at element
+     * <code>index</code> of the block.
+     */
+    public void putInts(int index, int[] src, int srcOffset, int length) {
+        checkRange(index, length, 4);
+        IntBuffer view = asIntBuffer();
+        view.position(index);
+        view.put(src, srcOffset, length);
+    }
+
+    public void getInts(int index, int[] dst, int dstOffset, int length) {
+        checkRange(index, length, 4);
+        IntBuffer view = asIntBuffer();
+        view.position(index);
+        view.get(dst, dstOffset, length);
+    }
+
+    public void putLongs(int index, long[] src, int srcOffset, int length) {
+        checkRange(index, length, 8);
+        LongBuffer view = asLongBuffer();
+        view.position(index);
+        view.put(src, srcOffset, length);
+    }
+
+    public void getLongs(int index, long[] dst, int dstOffset, int length) {
+        checkRange(index, length, 8);
+        LongBuffer view = asLongBuffer();
+        view.position(index);
+        view.get(dst, dstOffset, length);
+    }
+
+    public void putFloats(int index, float[] src, int srcOffset, int length) {
+        checkRange(index, length, 4);
+        FloatBuffer view = asFloatBuffer();
+        view.position(index);
+        view.put(src, srcOffset, length);
+    }
+
+    public void getFloats(int index, float[] dst, int dstOffset, int length) {
+        checkRange(index, length, 4);
+        FloatBuffer view = asFloatBuffer();
+        view.position(index);
+        view.get(dst, dstOffset, length);
+    }
+
+    public void putDoubles(int index, double[] src, int srcOffset, int length) {
+        checkRange(index, length, 8);
+        DoubleBuffer view = asDoubleBuffer();
+        view.position(index);
+        view.put(src, srcOffset, length);
+    }
+
+    public void getDoubles(int index, double[] dst, int dstOffset, int length) {
+        checkRange(index, length, 8);
+        DoubleBuffer view = asDoubleBuffer();
+        view.position(index);
+        view.get(dst, dstOffset, length);
+    }
+
+    @Override
+    public String toString() {
+        return "NativeBlock[size=" + mSize + ", capacity=" + mCapacity + "]";
+    }
+
+    private ByteBuffer fullBuffer() {
+        ByteBuffer buffer = buffer();
+        buffer.limit(mCapacity);
+        return buffer;
+    }
+
+    private int byteOffset(int index, int elementSize) {
+        if (NativeArena.isBoundsChecking()) {
+            checkValid();
+            if (index < 0 || (index + 1) * elementSize > mSize) {
+                throw new IndexOutOfBoundsException("index=" + index + ", size=" + mSize);
+            }
+        }
+        return mOffset + index * elementSize;
+    }
+
+    private void checkRange(int index, int length, int elementSize) {
+        if (NativeArena.isBoundsChecking()) {
+            checkValid();
+            if (index < 0 || length < 0 || (index + length) * elementSize > mSize) {
+                throw new IndexOutOfBoundsException("index=" + index + ", length=" + length
+                        + ", size=" + mSize);
+            }
+        }
+    }
+
+    private void checkValid() {
+        if (mReleased) throw new IllegalStateException("NativeBlock used after release");
+        if (mArena.isClosed()) throw new IllegalStateException("NativeBlock used after close");
+    }
+}
@@ -19,14 +19,16 @@ public class Unsafe {
      */
     private static long DALVIK_SUPER_CLASS_OFFSET = 72L;
     private RuntimeUnsafeWrapper wrapper;
+    /**
+     * Cached arrayBaseOffset(Object[].class), resolved once instead of on every toAddress call
+     */
+    private long objectArrayBaseOffset = -1;
     private Unsafe() throws Exception
     {
         System.loadLibrary("jsaiyan");
-        try {
-        	wrapper = new RuntimeUnsafeWrapper();
-        
-        } catch (Exception e) {
-        	e.printStackTrace();
+        wrapper = FieldAccessors.unsafeWrapper();
+        if (wrapper == null) {
+        	new Exception("sun.misc.Unsafe is not available").printStackTrace();
         }
     }
 
@@ -194,7 +196,7 @@ public class Unsafe {
      */
     public long toAddress(Object obj) {
         Object[] array = new Object[] {obj};
-        long offset = wrapper.arrayBaseOffset(Object[].class);
+        long offset = objectArrayBaseOffset();
         return normalize(wrapper.getInt(array, offset));
     }
 
@@ -205,7 +207,7 @@ public class Unsafe {
      */
     public Object fromAddress(long address) {
         Object[] array = new Object[] {null};
-        long offset = wrapper.arrayBaseOffset(Object[].class);
+        long offset = objectArrayBaseOffset();
         wrapper.putLong(array, offset, address);
         return array[0];
     }
@@ -226,6 +228,13 @@ public class Unsafe {
 
     //private Utilities
     
+    private long objectArrayBaseOffset() {
+        if (objectArrayBaseOffset < 0) {
+            objectArrayBaseOffset = wrapper.arrayBaseOffset(Object[].class);
+        }
+        return objectArrayBaseOffset;
+    }
+
     private native void nativeCallSuper(Object instance, Class<?> clazz, String methodName, String signature,  Object[] params);
     private String getSignature(Method method) {
         String result = "(";
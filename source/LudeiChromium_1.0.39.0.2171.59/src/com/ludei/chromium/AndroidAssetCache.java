@@ -0,0 +1,223 @@
+// Copyright (c) 2012 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package com.ludei.chromium;
+
+import android.content.Context;
+import android.content.res.AssetManager;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Serves APK assets for AndroidProtocolHandler.
+ *
+ * The asset index is read once from the APK central directory, so missing assets are rejected
+ * without touching the AssetManager. Resolved URL to asset name lookups and MIME types are
+ * cached, small assets are kept in a bounded in-memory cache and large uncompressed assets are
+ * streamed from the APK file descriptor, which makes skipping (ranged requests) a seek.
+ * All methods may be called from any thread.
+ */
+class AndroidAssetCache {
+    private static final String TAG = "AndroidAssetCache";
+
+    private static final String APK_ASSETS_PREFIX = "assets/";
+
+    // Assets up to this size are kept in memory once read.
+    private static final int MAX_CACHED_ASSET_SIZE = 64 * 1024;
+    private static final int MEMORY_CACHE_SIZE = 2 * 1024 * 1024;
+    private static final int URL_CACHE_SIZE = 512;
+    // Uncompressed assets from this size on are streamed straight from the APK.
+    private static final int LARGE_ASSET_SIZE = 256 * 1024;
+
+    // Marks a cached lookup that has no MIME type.
+    private static final String NO_MIME_TYPE = "";
+
+    private static class AssetInfo {
+        final long size;
+        final boolean compressed;
+
+        AssetInfo(long size, boolean compressed) {
+            this.size = size;
+            this.compressed = compressed;
+        }
+    }
+
+    private static AndroidAssetCache sInstance;
+
+    private final AssetManager mAssets;
+    // Null if the APK could not be indexed, every lookup then goes to the AssetManager.
+    private final Map<String, AssetInfo> mIndex;
+    private final LruCache<String, String> mResolvedUrls = new LruCache<String, String>(
+            URL_CACHE_SIZE);
+    private final ConcurrentHashMap<String, String> mMimeTypes =
+            new ConcurrentHashMap<String, String>();
+    private final LruCache<String, byte[]> mContents = new LruCache<String, byte[]>(
+            MEMORY_CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String key, byte[] value) {
+            return value.length;
+        }
+    };
+
+    static synchronized AndroidAssetCache get(Context context) {
+        if (sInstance == null) {
+            Context appContext = context.getApplicationContext() != null
+                    ? context.getApplicationContext() : context;
+            sInstance = new AndroidAssetCache(appContext);
+        }
+        return sInstance;
+    }
+
+    private AndroidAssetCache(Context context) {
+        mAssets = context.getAssets();
+        mIndex = buildIndex(context.getApplicationInfo().sourceDir);
+    }
+
+    private static Map<String, AssetInfo> buildIndex(String apkPath) {
+        ZipFile apk = null;
+        try {
+            apk = new ZipFile(apkPath);
+            Map<String, AssetInfo> index = new HashMap<String, AssetInfo>();
+            Enumeration<? extends ZipEntry> entries = apk.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (entry.isDirectory() || !name.startsWith(APK_ASSETS_PREFIX)) continue;
+                index.put(name.substring(APK_ASSETS_PREFIX.length()), new AssetInfo(
+                        entry.getSize(), entry.getMethod() != ZipEntry.STORED));
+            }
+            return index;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to index APK assets: " + e.getMessage());
+            return null;
+        } finally {
+            if (apk != null) {
+                try {
+                    apk.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the asset name previously resolved for a URL, or null.
+     */
+    String getResolvedAsset(String url) {
+        return mResolvedUrls.get(url);
+    }
+
+    /**
+     * Remembers the asset name a URL resolves to, so the URL is not parsed again.
+     */
+    void putResolvedAsset(String url, String assetName) {
+        mResolvedUrls.put(url, assetName);
+    }
+
+    /**
+     * Removes duplicate slashes and resolves "." and ".." segments of an absolute path.
+     * @return the normalized path without leading slash, or null if it climbs above the root.
+     */
+    static String normalizePath(String path) {
+        StringBuilder result = new StringBuilder(path.length());
+        int start = 0;
+        int length = path.length();
+        while (start < length) {
+            int end = path.indexOf('/', start);
+            if (end == -1) end = length;
+            int segmentLength = end - start;
+            if (segmentLength == 0 || (segmentLength == 1 && path.charAt(start) == '.')) {
+                // Duplicate slash or current directory.
+            } else if (segmentLength == 2 && path.charAt(start) == '.'
+                    && path.charAt(start + 1) == '.') {
+                if (result.length() == 0) return null;
+                int lastSlash = result.lastIndexOf("/");
+                result.setLength(lastSlash == -1 ? 0 : lastSlash);
+            } else {
+                if (result.length() > 0) result.append('/');
+                result.append(path, start, end);
+            }
+            start = end + 1;
+        }
+        return result.toString();
+    }
+
+    /**
+     * Opens an asset.
+     * @param assetName name relative to the assets directory.
+     * @return the stream, or null if the asset does not exist.
+     */
+    InputStream open(String assetName) {
+        AssetInfo info = null;
+        if (mIndex != null) {
+            info = mIndex.get(assetName);
+            if (info == null) {
+                Log.e(TAG, "Unable to open asset: " + assetName);
+                return null;
+            }
+        }
+        try {
+            if (info != null && info.size <= MAX_CACHED_ASSET_SIZE) {
+                byte[] contents = mContents.get(assetName);
+                if (contents == null) {
+                    contents = readFully(assetName, (int) info.size);
+                    mContents.put(assetName, contents);
+                }
+                return new ByteArrayInputStream(contents);
+            }
+            if (info != null && !info.compressed && info.size >= LARGE_ASSET_SIZE) {
+                // Seekable stream, skip() does not read the skipped range.
+                return mAssets.openFd(assetName).createInputStream();
+            }
+            return mAssets.open(assetName, AssetManager.ACCESS_STREAMING);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open asset: " + assetName);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the MIME type guessed from the file name, or null if unknown.
+     */
+    String getMimeType(String path) {
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        String key = dot > slash ? path.substring(dot) : path;
+        String mimeType = mMimeTypes.get(key);
+        if (mimeType == null) {
+            mimeType = URLConnection.guessContentTypeFromName(path);
+            if (mimeType == null) mimeType = NO_MIME_TYPE;
+            if (dot > slash) mMimeTypes.put(key, mimeType);
+        }
+        return mimeType == NO_MIME_TYPE ? null : mimeType;
+    }
+
+    private byte[] readFully(String assetName, int sizeHint) throws IOException {
+        InputStream is = mAssets.open(assetName, AssetManager.ACCESS_BUFFER);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(sizeHint, 32));
+            byte[] buffer = new byte[Math.max(Math.min(sizeHint, 8192), 32)];
+            int count;
+            while ((count = is.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -5,15 +5,12 @@ package com.ludei.chromium;
 // found in the LICENSE file.
 
 import android.content.Context;
-import android.content.res.AssetManager;
+import android.content.res.Resources;
 import android.net.Uri;
 import android.util.Log;
-import android.util.TypedValue;
 
 import java.io.InputStream;
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.URLConnection;
 import java.util.List;
 
@@ -34,7 +31,11 @@ public class AndroidProtocolHandler {
     private static final String CONTENT_SCHEME = "content";
     private static final String APP_SCHEME = "app";
     private static final String APP_SRC = "www";
-    private static final String SCHEME_SEPARATOR = "//";
+
+    // The native asset and resource paths never change, fetched once to avoid a JNI call per
+    // request.
+    private static volatile String sAndroidAssetPath;
+    private static volatile String sAndroidResourcePath;
 
     /**
      * Open an InputStream for an Android resource.
@@ -46,15 +47,21 @@ public class AndroidProtocolHandler {
     // handle the exception in the java side rather than the native side.
     @CalledByNativeUnchecked
     public static InputStream open(Context context, String url) {
+        AndroidAssetCache assets = AndroidAssetCache.get(context);
+        String assetName = url != null ? assets.getResolvedAsset(url) : null;
+        if (assetName != null) {
+            return assets.open(assetName);
+        }
+
         Uri uri = verifyUrl(url);
         if (uri == null) {
             return null;
         }
         String path = uri.getPath();
         if (uri.getScheme().equals(FILE_SCHEME)) {
-            if (path.startsWith(nativeGetAndroidAssetPath())) {
-                return openAsset(context, uri);
-            } else if (path.startsWith(nativeGetAndroidResourcePath())) {
+            if (path.startsWith(getAndroidAssetPath())) {
+                return openAsset(assets, url, path);
+            } else if (path.startsWith(getAndroidResourcePath())) {
                 return openResource(context, uri);
             }
         } else if (uri.getScheme().equals(CONTENT_SCHEME)) {
@@ -67,46 +74,36 @@ public class AndroidProtocolHandler {
             // path == "/" or path == ""
             if (path.length() <= 1) return null;
 
-            return openAsset(context, appUriToFileUri(uri));
+            return openAsset(assets, url, getAndroidAssetPath() + APP_SRC + path);
         }
 
         return null;
     }
 
-    // Convert app uri to file uri to access the actual files in assets.
-    private static Uri appUriToFileUri(Uri uri) {
-        assert(uri.getScheme().equals(APP_SCHEME));
-        assert(uri.getPath() != null);
-
-        try {
-            URI fileUri = new URI(FILE_SCHEME, SCHEME_SEPARATOR +
-                    nativeGetAndroidAssetPath() + APP_SRC + uri.getPath(), null);
-            return Uri.parse(fileUri.normalize().toString());
-        } catch (URISyntaxException e) {
-            Log.e(TAG, "Unable to convert app URI to file URI: " + uri, e);
-            return null;
+    private static String getAndroidAssetPath() {
+        String path = sAndroidAssetPath;
+        if (path == null) {
+            path = nativeGetAndroidAssetPath();
+            sAndroidAssetPath = path;
         }
+        return path;
     }
 
-    private static int getFieldId(Context context, String assetType, String assetName)
-            throws ClassNotFoundException, NoSuchFieldException, IllegalAccessException {
-        Class<?> d = context.getClassLoader()
-                .loadClass(context.getPackageName() + ".R$" + assetType);
-        java.lang.reflect.Field field = d.getField(assetName);
-        int id = field.getInt(null);
-        return id;
-    }
-
-    private static int getValueType(Context context, int field_id) {
-        TypedValue value = new TypedValue();
-        context.getResources().getValue(field_id, value, true);
-        return value.type;
+    private static String getAndroidResourcePath() {
+        String path = sAndroidResourcePath;
+        if (path == null) {
+            path = nativeGetAndroidResourcePath();
+            sAndroidResourcePath = path;
+        }
+        return path;
     }
 
-    private static InputStream openResource(Context context, Uri uri) {
-        assert(uri.getScheme().equals(FILE_SCHEME));
-        assert(uri.getPath() != null);
-        assert(uri.getPath().startsWith(nativeGetAndroidResourcePath()));
+    /**
+     * Resolves a "/android_res/asset_type/asset_name.ext" URL.
+     * @return the cached entry, or null if the URL can not be served.
+     */
+    private static AndroidResourceCache.Entry resolveResource(AndroidResourceCache resources,
+            Uri uri) {
         // The path must be of the form "/android_res/asset_type/asset_name.ext".
         List<String> pathSegments = uri.getPathSegments();
         if (pathSegments.size() != 3) {
@@ -116,56 +113,44 @@ public class AndroidProtocolHandler {
         String assetPath = pathSegments.get(0);
         String assetType = pathSegments.get(1);
         String assetName = pathSegments.get(2);
-        if (!("/" + assetPath + "/").equals(nativeGetAndroidResourcePath())) {
-            Log.e(TAG, "Resource path does not start with " + nativeGetAndroidResourcePath() +
+        if (!("/" + assetPath + "/").equals(getAndroidResourcePath())) {
+            Log.e(TAG, "Resource path does not start with " + getAndroidResourcePath() +
                     ": " + uri);
             return null;
         }
-        // Drop the file extension.
-        assetName = assetName.split("\\.")[0];
-        try {
-            // Use the application context for resolving the resource package name so that we do
-            // not use the browser's own resources. Note that if 'context' here belongs to the
-            // test suite, it does not have a separate application context. In that case we use
-            // the original context object directly.
-            if (context.getApplicationContext() != null) {
-                context = context.getApplicationContext();
-            }
-            int field_id = getFieldId(context, assetType, assetName);
-            int value_type = getValueType(context, field_id);
-            if (value_type == TypedValue.TYPE_STRING) {
-                return context.getResources().openRawResource(field_id);
-            } else {
-                Log.e(TAG, "Asset not of type string: " + uri);
-                return null;
-            }
-        } catch (ClassNotFoundException e) {
-            Log.e(TAG, "Unable to open resource URL: " + uri, e);
-            return null;
-        } catch (NoSuchFieldException e) {
-            Log.e(TAG, "Unable to open resource URL: " + uri, e);
+        AndroidResourceCache.Entry entry = resources.lookup(assetType, assetName);
+        return entry.id != 0 ? entry : null;
+    }
+
+    private static InputStream openResource(Context context, Uri uri) {
+        assert(uri.getScheme().equals(FILE_SCHEME));
+        assert(uri.getPath() != null);
+        assert(uri.getPath().startsWith(getAndroidResourcePath()));
+        AndroidResourceCache resources = AndroidResourceCache.get(context);
+        AndroidResourceCache.Entry entry = resolveResource(resources, uri);
+        if (entry == null) {
+            Log.e(TAG, "Unable to open resource URL: " + uri);
             return null;
-        } catch (IllegalAccessException e) {
+        }
+        try {
+            return resources.getResources().openRawResource(entry.id);
+        } catch (Resources.NotFoundException e) {
             Log.e(TAG, "Unable to open resource URL: " + uri, e);
             return null;
         }
     }
 
-    private static InputStream openAsset(Context context, Uri uri) {
-        assert(uri.getScheme().equals(FILE_SCHEME));
-        assert(uri.getPath() != null);
-        assert(uri.getPath().startsWith(nativeGetAndroidAssetPath()));
-        String path = uri.getPath();
+    private static InputStream openAsset(AndroidAssetCache assets, String url, String path) {
+        String assetPath = getAndroidAssetPath();
         // Remove duplicate slashes and normalize the URL.
-        path = (new java.io.File(path)).getAbsolutePath();
-        path = path.replaceFirst(nativeGetAndroidAssetPath(), "");
-        try {
-            AssetManager assets = context.getAssets();
-            return assets.open(path, AssetManager.ACCESS_STREAMING);
-        } catch (IOException e) {
-            Log.e(TAG, "Unable to open asset URL: " + uri);
+        String assetName = AndroidAssetCache.normalizePath(path);
+        if (assetName == null || !("/" + assetName).startsWith(assetPath)) {
+            Log.e(TAG, "Unable to open asset URL: " + url);
             return null;
         }
+        assetName = assetName.substring(assetPath.length() - 1);
+        assets.putResolvedAsset(url, assetName);
+        return assets.open(assetName);
     }
 
     private static InputStream openContent(Context context, Uri uri) {
@@ -204,11 +189,19 @@ public class AndroidProtocolHandler {
             // Asset files may have a known extension.
         } else if (uri.getScheme().equals(APP_SCHEME) ||
                 uri.getScheme().equals(FILE_SCHEME) &&
-                        path.startsWith(nativeGetAndroidAssetPath())) {
-            String mimeType = URLConnection.guessContentTypeFromName(path);
+                        path.startsWith(getAndroidAssetPath())) {
+            String mimeType = AndroidAssetCache.get(context).getMimeType(path);
             if (mimeType != null) {
                 return mimeType;
             }
+        } else if (uri.getScheme().equals(FILE_SCHEME) &&
+                path.startsWith(getAndroidResourcePath())) {
+            // Resolved from the resource file name, no need to sniff the stream.
+            AndroidResourceCache.Entry entry =
+                    resolveResource(AndroidResourceCache.get(context), uri);
+            if (entry != null && entry.mimeType != null) {
+                return entry.mimeType;
+            }
         }
         // Fall back to sniffing the type from the stream.
         try {
@@ -0,0 +1,127 @@
+// Copyright (c) 2012 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package com.ludei.chromium;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.util.Log;
+import android.util.TypedValue;
+
+import java.net.URLConnection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves file:///android_res/type/name.ext URLs for AndroidProtocolHandler.
+ *
+ * Every (type, name) pair is resolved once through Resources.getIdentifier() and kept, together
+ * with the MIME type of the backing file, in a concurrent map. Failed lookups are cached too, so
+ * a missing image is not looked up again on every request.
+ */
+class AndroidResourceCache {
+    private static final String TAG = "AndroidResourceCache";
+
+    /**
+     * A resolved resource. An id of 0 means the resource does not exist or can not be opened.
+     */
+    static class Entry {
+        final int id;
+        final String mimeType;
+
+        Entry(int id, String mimeType) {
+            this.id = id;
+            this.mimeType = mimeType;
+        }
+    }
+
+    private static final Entry NOT_FOUND = new Entry(0, null);
+
+    private static AndroidResourceCache sInstance;
+
+    private final Context mContext;
+    private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+
+    static synchronized AndroidResourceCache get(Context context) {
+        if (sInstance == null) {
+            // Use the application context for resolving the resource package name so that we do
+            // not use the browser's own resources. Note that if 'context' here belongs to the
+            // test suite, it does not have a separate application context. In that case we use
+            // the original context object directly.
+            Context appContext = context.getApplicationContext() != null
+                    ? context.getApplicationContext() : context;
+            sInstance = new AndroidResourceCache(appContext);
+        }
+        return sInstance;
+    }
+
+    private AndroidResourceCache(Context context) {
+        mContext = context;
+    }
+
+    Resources getResources() {
+        return mContext.getResources();
+    }
+
+    /**
+     * Resolves a resource.
+     * @param type the resource type, e.g. "raw" or "drawable".
+     * @param fileName the resource name, optionally with a file extension.
+     * @return the entry, its id is 0 if the resource can not be served.
+     */
+    Entry lookup(String type, String fileName) {
+        int dot = fileName.indexOf('.');
+        String name = dot == -1 ? fileName : fileName.substring(0, dot);
+        String key = type + '/' + name;
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = resolve(type, name);
+            Entry previous = mEntries.putIfAbsent(key, entry);
+            if (previous != null) entry = previous;
+        }
+        return entry;
+    }
+
+    private Entry resolve(String type, String name) {
+        Resources resources = mContext.getResources();
+        int id = resources.getIdentifier(name, type, mContext.getPackageName());
+        if (id == 0) id = getFieldId(type, name);
+        if (id == 0) {
+            Log.e(TAG, "Unable to find resource " + type + "/" + name);
+            return NOT_FOUND;
+        }
+        TypedValue value = new TypedValue();
+        try {
+            resources.getValue(id, value, true);
+        } catch (Resources.NotFoundException e) {
+            Log.e(TAG, "Unable to resolve resource " + type + "/" + name, e);
+            return NOT_FOUND;
+        }
+        if (value.type != TypedValue.TYPE_STRING) {
+            Log.e(TAG, "Asset not of type string: " + type + "/" + name);
+            return NOT_FOUND;
+        }
+        // For file backed resources the string is the path of the file inside the APK.
+        String mimeType = value.string != null
+                ? URLConnection.guessContentTypeFromName(value.string.toString()) : null;
+        return new Entry(id, mimeType);
+    }
+
+    /**
+     * Falls back to the generated R class, for apps whose R package differs from the package
+     * name. Only reached once per (type, name) since results are cached.
+     */
+    private int getFieldId(String type, String name) {
+        try {
+            Class<?> d = mContext.getClassLoader()
+                    .loadClass(mContext.getPackageName() + ".R$" + type);
+            return d.getField(name).getInt(null);
+        } catch (ClassNotFoundException e) {
+            return 0;
+        } catch (NoSuchFieldException e) {
+            return 0;
+        } catch (IllegalAccessException e) {
+            return 0;
+        }
+    }
+}
@@ -16,8 +16,6 @@ import android.widget.Toast;
 
 import org.chromium.base.BaseSwitches;
 import org.chromium.base.CommandLine;
-import org.chromium.base.PathUtils;
-import org.chromium.base.ResourceExtractor;
 import org.chromium.base.library_loader.ProcessInitException;
 import org.chromium.content.browser.*;
 import org.chromium.content.common.ContentSwitches;
@@ -59,17 +57,37 @@ public class LudeiContentView extends FrameLayout {
     }
 
     public void onPause() {
-        ContentViewCore contentView = this.getContentViewCore();
-        if (contentView != null) {
-            contentView.onHide();
-        }
+        mThrottleController.onResumed(false);
     }
 
     public void onResume() {
-        ContentViewCore contentView = this.getContentViewCore();
-        if (contentView != null) {
-            contentView.onShow();
-        }
+        mThrottleController.onResumed(true);
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateThrottleVisibility();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateThrottleVisibility();
+    }
+
+    private void updateThrottleVisibility() {
+        // Called from the FrameLayout constructor, before initialize().
+        if (mThrottleController == null) return;
+        mThrottleController.onVisibilityChanged(
+                isShown() && getWindowVisibility() == View.VISIBLE);
+    }
+
+    /**
+     * @return the controller throttling the renderer while this view is paused or hidden.
+     */
+    public LudeiThrottleController getThrottleController() {
+        return mThrottleController;
     }
 
     public LudeiWebSettingsProxy getSettings() {
@@ -108,6 +126,8 @@ public class LudeiContentView extends FrameLayout {
         if (contentView != null) {
             contentView.destroy();
         }
+        endInitialSettingsBatch();
+        LudeiEnginePool.onViewDestroyed();
     }
 
     public static void enablePlatformNotifications() {
@@ -264,10 +284,15 @@ public class LudeiContentView extends FrameLayout {
         return 0;
     }
 
+    /**
+     * Suspends timers in every renderer, like WebView.pauseTimers() this affects all views.
+     */
     public void pauseTimers() {
+        LudeiThrottleController.pauseTimers();
     }
 
     public void resumeTimers() {
+        LudeiThrottleController.resumeTimers();
     }
 
     public void clearCache() {
@@ -296,6 +321,62 @@ public class LudeiContentView extends FrameLayout {
 
     public void setWebViewClient(WebViewClient client) {
         mBridge.setwebViewClient(client);
+        // Decisions remembered for the previous client no longer apply.
+        mDelegate.getInterceptEngine().clearDecisionCache();
+    }
+
+    /**
+     * @return the engine deciding which requests are intercepted before the WebViewClient is
+     * asked.
+     */
+    public LudeiInterceptEngine getInterceptEngine() {
+        return mDelegate.getInterceptEngine();
+    }
+
+    /**
+     * Serves intercepted responses from <code>cache</code> before the interceptors are asked.
+     * @param cache the cache, or null to disable caching.
+     */
+    public void setResponseCache(LudeiResponseCache cache) {
+        mDelegate.setResponseCache(cache);
+    }
+
+    /**
+     * Receives loaded resources in batches instead of one WebViewClient.onLoadResource() call
+     * per resource.
+     * @param listener the listener, or null to go back to onLoadResource().
+     */
+    public void setOnLoadResourcesListener(
+            LudeiContentsClientBridge.OnLoadResourcesListener listener) {
+        mBridge.setOnLoadResourcesListener(listener);
+    }
+
+    /**
+     * @return the number of client callbacks waiting to be delivered to the UI thread.
+     */
+    public int getPendingCallbackCount() {
+        return mBridge.getPendingCallbackCount();
+    }
+
+    /**
+     * @return the highest number of client callbacks that were waiting at once.
+     */
+    public int getMaxPendingCallbackCount() {
+        return mBridge.getMaxPendingCallbackCount();
+    }
+
+    /**
+     * @return the time in milliseconds the oldest callback of the last drain waited for it.
+     */
+    public long getLastCallbackDrainLatencyMs() {
+        return mBridge.getLastDrainLatencyMs();
+    }
+
+    /**
+     * @return the highest value of {@link #getLastCallbackDrainLatencyMs()} so far.
+     */
+    public long getMaxCallbackDrainLatencyMs() {
+        return mBridge.getMaxDrainLatencyMs();
     }
 
     public void setDownloadListener(DownloadListener listener) {
@@ -348,16 +429,16 @@ public class LudeiContentView extends FrameLayout {
     /*
      * Private Methods
      */
-    private static final String COMMAND_LINE_FILE = "/data/local/tmp/content-shell-command-line";
     private static final String TAG = "LudeiChromium";
     private static final String ACTIVE_SHELL_URL_KEY = "activeUrl";
-    private static final String[] MANDATORY_PAK_FILES = new String[] {"content_shell.pak"};
-    private static final String PRIVATE_DATA_DIRECTORY_SUFFIX = "content_shell";
 
     private Context ctx;
     private LudeiWebSettingsProxy mSettings;
+    // Whether the settings batch opened by initialize() is still open.
+    private boolean mInitialSettingsBatch;
     private LudeiContentViewDelegate mDelegate;
     private LudeiContentsClientBridge mBridge;
+    private LudeiThrottleController mThrottleController;
     private WebView mProxyWebView;
     //tasks waiting for ContentView initialization
     private ArrayList<Runnable> pendingTasks = new ArrayList<Runnable>();
@@ -375,6 +456,10 @@ public class LudeiContentView extends FrameLayout {
 
     public void onReadyToRender() {
         mDelegate.installWebContentsObserver(getContentViewCore());
+        endInitialSettingsBatch();
+        mThrottleController.onContentViewCoreReady();
+        // The renderer of this view took a spare connection, bind the next one.
+        LudeiEnginePool.onViewCreated(ctx);
         for (Runnable task: pendingTasks) {
             task.run();
         }
@@ -382,47 +467,29 @@ public class LudeiContentView extends FrameLayout {
     }
 
 
-    private static boolean staticInitialization = false;
-
     private void initialize(Context context) {
 
         Log.i("Ludei", "***************************");
         Log.i("Ludei", "Initializing Ludei WebView+");
         Log.i("Ludei", "**************************");
 
-        if (!staticInitialization) {
-            PathUtils.setPrivateDataDirectorySuffix(PRIVATE_DATA_DIRECTORY_SUFFIX);
-            ResourceExtractor.setMandatoryPaksToExtract(MANDATORY_PAK_FILES);
-            ResourceProvider.registerResources();
-            staticInitialization = true;
-        }
+        // Command line, resources, library loading and child process warm up run in parallel,
+        // unless the app already started them.
+        LudeiStartup startup = LudeiStartup.start(context);
 
         this.ctx = context;
+        mThrottleController = new LudeiThrottleController(this);
         if (mProxyWebView == null) {
             mProxyWebView = new LudeiWebView(context, null, 0, this);
         }
         mBridge = new LudeiContentsClientBridge(mProxyWebView, new LudeiDefaultWebChromeClient(this.ctx, this));
         mDelegate = new LudeiContentViewDelegate(this, mBridge);
 
-        // Initializing the command line must occur before loading the library.
-        if (!CommandLine.isInitialized()) {
-            CommandLine.initFromFile(COMMAND_LINE_FILE);
-            String[] commandLineParams = null;//getCommandLineParamsFromIntent(getIntent());
-
-            if (commandLineParams != null) {
-                CommandLine.getInstance().appendSwitchesAndArguments(commandLineParams);
-            }
-            CommandLine.getInstance().appendSwitch("allow-file-access-from-files");
-            if (!LudeiContentView.REMOTE_DEBUGGING) {
-                CommandLine.getInstance().appendSwitch("disable-remote-debugging");
-            }
-            CommandLine.getInstance().appendSwitch("ignore-gpu-blacklist");
-        }
+        // The debugger has to attach before the native library is initialized.
+        startup.awaitCommandLine();
         waitForDebuggerIfNeeded();
-
-        DeviceUtils.addDeviceSpecificUserAgentSwitch(context);
         try {
-        	org.chromium.base.library_loader.LibraryLoader.ensureInitialized();
+            startup.finishOnUiThread();
         } catch (ProcessInitException e) {
             Log.e(TAG, "ContentView initialization failed.", e);
             // Since the library failed to initialize nothing in the application
@@ -432,6 +499,10 @@ public class LudeiContentView extends FrameLayout {
         }
 
         mSettings =  LudeiWebSettingsProxy.Create(context,(new LudeiWebSettings(context, true, false)));
+        // The settings the app applies while the view starts up are pushed to native once, when
+        // the view is ready to render, instead of once per setter.
+        mSettings.getAwSettings().beginBatchEdit();
+        mInitialSettingsBatch = true;
         shellManager = new ShellManager(context, null, this, mDelegate);
 
         WindowAndroid mWindowAndroid = new ActivityWindowAndroid((Activity)ctx);
@@ -476,6 +547,12 @@ public class LudeiContentView extends FrameLayout {
     }
 
 
+    private void endInitialSettingsBatch() {
+        if (!mInitialSettingsBatch) return;
+        mInitialSettingsBatch = false;
+        mSettings.getAwSettings().endBatchEdit();
+    }
+
     private void finishInitialization(Bundle savedInstanceState) {
         shellManager.launchShell("");
         postTask(new Runnable() {
@@ -502,7 +579,9 @@ public class LudeiContentView extends FrameLayout {
 
 
     private void waitForDebuggerIfNeeded() {
-        if (CommandLine.getInstance().hasSwitch(BaseSwitches.WAIT_FOR_JAVA_DEBUGGER)) {
+        // Not initialized if the command line stage failed, finishOnUiThread() reports it.
+        if (CommandLine.isInitialized()
+                && CommandLine.getInstance().hasSwitch(BaseSwitches.WAIT_FOR_JAVA_DEBUGGER)) {
             Log.e(TAG, "Waiting for Java debugger to connect...");
             android.os.Debug.waitForDebugger();
             Log.e(TAG, "Java debugger connected. Resuming execution.");
@@ -510,7 +589,8 @@ public class LudeiContentView extends FrameLayout {
     }
 
 
-    private ContentViewCore getContentViewCore() {
+    ContentViewCore getContentViewCore() {
+        if (shellManager == null) return null;
         Shell shell = shellManager.getActiveShell();
         ContentView cv = shell != null ? shell.getContentView() : null;
         return cv != null ? cv.getContentViewCore() : null;
@@ -11,6 +11,8 @@ public class LudeiContentViewDelegate implements LudeiContentsIoThreadClient, In
     private LudeiContentView mContentView;
     private LudeiContentsClientBridge mBridge;
     private LudeiWebContentsObserver mWebContentsObserver;
+    private final LudeiInterceptEngine mInterceptEngine = new LudeiInterceptEngine();
+    private volatile LudeiResponseCache mResponseCache;
 
     LudeiContentViewDelegate(LudeiContentView contentView, LudeiContentsClientBridge bridge){
         this.mContentView = contentView;
@@ -38,17 +40,39 @@ public class LudeiContentViewDelegate implements LudeiContentsIoThreadClient, In
      */
     @Override
     public int getCacheMode() {
-        return mContentView.getSettings().getCacheMode();
+        return ioThreadSettings().cacheMode;
     }
 
     @Override
     public InterceptedRequestData shouldInterceptRequest(final String url,
                                                          boolean isMainFrame) {
+        LudeiResponseCache cache = mResponseCache;
+        if (cache != null) {
+            InterceptedRequestData cached = cache.get(url);
+            if (cached != null) return cached;
+        }
+
+        // Registered rules and remembered decisions are resolved without entering app code.
+        LudeiInterceptEngine.Rule rule = mInterceptEngine.findRule(url);
+        if (rule != null) {
+            InterceptedRequestData data = rule.handle(url);
+            if (data == null) {
+                mBridge.postOnLoadResource(url);
+            } else if (isMainFrame && data.getData() == null) {
+                mBridge.postOnReceivedError(-1, null, url);
+            }
+            return cache != null ? cache.capture(url, data) : data;
+        }
+        if (mInterceptEngine.isKnownNotIntercepted(url)) {
+            mBridge.postOnLoadResource(url);
+            return null;
+        }
 
         WebResourceResponse webResourceResponse = mBridge.shouldInterceptRequest(url);
         InterceptedRequestData interceptedRequestData = null;
 
         if (webResourceResponse == null) {
+            mInterceptEngine.rememberNotIntercepted(url);
             mBridge.postOnLoadResource(url);
         } else {
             if (isMainFrame && webResourceResponse.getData() == null) {
@@ -57,23 +81,32 @@ public class LudeiContentViewDelegate implements LudeiContentsIoThreadClient, In
             interceptedRequestData = new InterceptedRequestData(webResourceResponse.getMimeType(),
                     webResourceResponse.getEncoding(),
                     webResourceResponse.getData());
+            if (cache != null) {
+                interceptedRequestData = cache.capture(url, interceptedRequestData);
+            }
         }
         return interceptedRequestData;
     }
 
     @Override
     public boolean shouldBlockContentUrls() {
-        return !mContentView.getSettings().getAllowContentAccess();
+        return !ioThreadSettings().allowContentAccess;
     }
 
     @Override
     public boolean shouldBlockFileUrls() {
-        return !mContentView.getSettings().getAllowFileAccess();
+        return !ioThreadSettings().allowFileAccess;
     }
 
     @Override
     public boolean shouldBlockNetworkLoads() {
-        return mContentView.getSettings().getBlockNetworkLoads();
+        return ioThreadSettings().blockNetworkLoads;
+    }
+
+    // Read straight from the settings snapshot, without locking, as these are queried for every
+    // request on the IO thread.
+    private LudeiWebSettings.IoThreadSettings ioThreadSettings() {
+        return mContentView.getSettings().getAwSettings().getIoThreadSettings();
     }
 
     @Override
@@ -136,6 +169,18 @@ public class LudeiContentViewDelegate implements LudeiContentsIoThreadClient, In
         mWebContentsObserver = new LudeiWebContentsObserver(contentViewCore, mBridge);
     }
 
+    public void setResponseCache(LudeiResponseCache cache) {
+        mResponseCache = cache;
+    }
+
+    public LudeiResponseCache getResponseCache() {
+        return mResponseCache;
+    }
+
+    public LudeiInterceptEngine getInterceptEngine() {
+        return mInterceptEngine;
+    }
+
     public LudeiContentsClientBridge getContentsClientBridge() {
         return mBridge;
     }
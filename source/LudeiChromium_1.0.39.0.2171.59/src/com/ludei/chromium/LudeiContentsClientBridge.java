@@ -7,9 +7,11 @@ import org.chromium.components.navigation_interception.InterceptNavigationDelega
 import android.graphics.Bitmap;
 import android.graphics.Picture;
 import android.net.http.SslError;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.View;
 import android.webkit.ConsoleMessage;
@@ -25,6 +27,13 @@ import android.webkit.WebResourceResponse;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 @JNINamespace("ludei")
 public class LudeiContentsClientBridge {
@@ -464,67 +473,213 @@ public class LudeiContentsClientBridge {
     private final static int MSG_ON_RECEIVED_LOGIN_REQUEST = 4;
     private final static int MSG_ON_RECEIVED_ERROR = 5;
 
-    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+    /**
+     * Receives the resources loaded during one UI thread pass in a single call, instead of one
+     * WebViewClient.onLoadResource() call per resource.
+     */
+    public interface OnLoadResourcesListener {
+        /**
+         * @param urls the loaded resources, in load order. Only valid during the call.
+         */
+        void onLoadResources(List<String> urls);
+    }
+
+    private static class PendingCallback {
+        final int mWhat;
+        final Object mObj;
+        final long mEnqueueTimeNanos;
+
+        PendingCallback(int what, Object obj) {
+            mWhat = what;
+            mObj = obj;
+            mEnqueueTimeNanos = System.nanoTime();
+        }
+    }
+
+    // Callbacks posted from the IO thread, drained in one pass on the UI thread.
+    private final ConcurrentLinkedQueue<PendingCallback> mPendingCallbacks =
+            new ConcurrentLinkedQueue<PendingCallback>();
+    private final AtomicInteger mPendingCallbackCount = new AtomicInteger();
+    private final AtomicBoolean mDrainScheduled = new AtomicBoolean();
+    private final ArrayList<String> mLoadedResources = new ArrayList<String>();
+    private OnLoadResourcesListener mOnLoadResourcesListener;
+    private volatile int mMaxPendingCallbackCount;
+    private volatile long mLastDrainLatencyNanos;
+    private volatile long mMaxDrainLatencyNanos;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    // Drains once per frame on JB+, as the frame callbacks run before input and drawing.
+    private final Choreographer mChoreographer =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                    && Looper.myLooper() == Looper.getMainLooper()
+                    ? Choreographer.getInstance() : null;
+    private final Runnable mDrainRunnable = new Runnable() {
         @Override
-        public void handleMessage(Message msg) {
-            switch(msg.what) {
-                case MSG_ON_LOAD_RESOURCE: {
-                    final String url = (String) msg.obj;
-                    onLoadResource(url);
-                    break;
-                }
-                case MSG_ON_PAGE_STARTED: {
-                    final String url = (String) msg.obj;
-                    onPageStarted(url);
-                    break;
-                }
-                case MSG_ON_DOWNLOAD_START: {
-                    DownloadInfo info = (DownloadInfo) msg.obj;
-                    onDownloadStart(info.mUrl, info.mUserAgent,
-                            info.mContentDisposition, info.mMimeType, info.mContentLength);
-                    break;
+        public void run() {
+            drainPendingCallbacks();
+        }
+    };
+    private final Choreographer.FrameCallback mDrainFrameCallback =
+            mChoreographer == null ? null : new Choreographer.FrameCallback() {
+                @Override
+                public void doFrame(long frameTimeNanos) {
+                    drainPendingCallbacks();
                 }
-                case MSG_ON_RECEIVED_LOGIN_REQUEST: {
-                    LoginRequestInfo info = (LoginRequestInfo) msg.obj;
-                    onReceivedLoginRequest(info.mRealm, info.mAccount, info.mArgs);
-                    break;
+            };
+
+    /**
+     * Sets a listener that receives loaded resources in batches. While set, the
+     * WebViewClient.onLoadResource() callback is not called.
+     */
+    public void setOnLoadResourcesListener(OnLoadResourcesListener listener) {
+        mOnLoadResourcesListener = listener;
+    }
+
+    /**
+     * @return the number of callbacks waiting to be delivered to the UI thread.
+     */
+    public int getPendingCallbackCount() {
+        return mPendingCallbackCount.get();
+    }
+
+    /**
+     * @return the highest number of callbacks that were waiting at once.
+     */
+    public int getMaxPendingCallbackCount() {
+        return mMaxPendingCallbackCount;
+    }
+
+    /**
+     * @return the time in milliseconds the oldest callback of the last drain waited for it.
+     */
+    public long getLastDrainLatencyMs() {
+        return TimeUnit.NANOSECONDS.toMillis(mLastDrainLatencyNanos);
+    }
+
+    /**
+     * @return the highest value of {@link #getLastDrainLatencyMs()} so far.
+     */
+    public long getMaxDrainLatencyMs() {
+        return TimeUnit.NANOSECONDS.toMillis(mMaxDrainLatencyNanos);
+    }
+
+    private void postCallback(int what, Object obj) {
+        mPendingCallbacks.add(new PendingCallback(what, obj));
+        int count = mPendingCallbackCount.incrementAndGet();
+        // Racy but good enough for a statistic.
+        if (count > mMaxPendingCallbackCount) mMaxPendingCallbackCount = count;
+        scheduleDrain();
+    }
+
+    private void scheduleDrain() {
+        if (mDrainScheduled.compareAndSet(false, true)) {
+            if (mChoreographer != null) {
+                mChoreographer.postFrameCallback(mDrainFrameCallback);
+            } else {
+                mHandler.post(mDrainRunnable);
+            }
+        }
+    }
+
+    private void drainPendingCallbacks() {
+        // Clear the flag first so that callbacks posted while draining schedule a new pass.
+        mDrainScheduled.set(false);
+        long now = System.nanoTime();
+        boolean first = true;
+        PendingCallback callback;
+        try {
+            while ((callback = mPendingCallbacks.poll()) != null) {
+                mPendingCallbackCount.decrementAndGet();
+                if (first) {
+                    first = false;
+                    long latency = now - callback.mEnqueueTimeNanos;
+                    mLastDrainLatencyNanos = latency;
+                    if (latency > mMaxDrainLatencyNanos) mMaxDrainLatencyNanos = latency;
                 }
-                case MSG_ON_RECEIVED_ERROR: {
-                    OnReceivedErrorInfo info = (OnReceivedErrorInfo) msg.obj;
-                    onReceivedError(info.mErrorCode, info.mDescription,
-                            info.mFailingUrl);
-                    break;
+                if (callback.mWhat == MSG_ON_LOAD_RESOURCE && mOnLoadResourcesListener != null) {
+                    mLoadedResources.add((String) callback.mObj);
+                    continue;
                 }
-                default:
-                    throw new IllegalStateException(
-                            "XWalkContentsClientCallbackHelper: unhandled message " + msg.what);
+                // Keep the order of the callbacks: deliver the batch before anything else.
+                deliverLoadedResources();
+                deliverCallback(callback);
             }
+            deliverLoadedResources();
+        } finally {
+            // If a callback threw, the rest of the queue is delivered by another pass.
+            if (!mPendingCallbacks.isEmpty()) scheduleDrain();
         }
-    };
+    }
+
+    private void deliverLoadedResources() {
+        if (mLoadedResources.isEmpty()) return;
+        try {
+            if (mOnLoadResourcesListener != null) {
+                mOnLoadResourcesListener.onLoadResources(mLoadedResources);
+            }
+        } finally {
+            mLoadedResources.clear();
+        }
+    }
+
+    private void deliverCallback(PendingCallback callback) {
+        switch(callback.mWhat) {
+            case MSG_ON_LOAD_RESOURCE: {
+                final String url = (String) callback.mObj;
+                onLoadResource(url);
+                break;
+            }
+            case MSG_ON_PAGE_STARTED: {
+                final String url = (String) callback.mObj;
+                onPageStarted(url);
+                break;
+            }
+            case MSG_ON_DOWNLOAD_START: {
+                DownloadInfo info = (DownloadInfo) callback.mObj;
+                onDownloadStart(info.mUrl, info.mUserAgent,
+                        info.mContentDisposition, info.mMimeType, info.mContentLength);
+                break;
+            }
+            case MSG_ON_RECEIVED_LOGIN_REQUEST: {
+                LoginRequestInfo info = (LoginRequestInfo) callback.mObj;
+                onReceivedLoginRequest(info.mRealm, info.mAccount, info.mArgs);
+                break;
+            }
+            case MSG_ON_RECEIVED_ERROR: {
+                OnReceivedErrorInfo info = (OnReceivedErrorInfo) callback.mObj;
+                onReceivedError(info.mErrorCode, info.mDescription,
+                        info.mFailingUrl);
+                break;
+            }
+            default:
+                throw new IllegalStateException(
+                        "XWalkContentsClientCallbackHelper: unhandled message " + callback.mWhat);
+        }
+    }
 
     public void postOnLoadResource(String url) {
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_ON_LOAD_RESOURCE, url));
+        postCallback(MSG_ON_LOAD_RESOURCE, url);
     }
 
     public void postOnPageStarted(String url) {
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_ON_PAGE_STARTED, url));
+        postCallback(MSG_ON_PAGE_STARTED, url);
     }
 
     public void postOnDownloadStart(String url, String userAgent, String contentDisposition,
                                     String mimeType, long contentLength) {
         DownloadInfo info = new DownloadInfo(url, userAgent, contentDisposition, mimeType,
                 contentLength);
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_ON_DOWNLOAD_START, info));
+        postCallback(MSG_ON_DOWNLOAD_START, info);
     }
 
     public void postOnReceivedLoginRequest(String realm, String account, String args) {
         LoginRequestInfo info = new LoginRequestInfo(realm, account, args);
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_ON_RECEIVED_LOGIN_REQUEST, info));
+        postCallback(MSG_ON_RECEIVED_LOGIN_REQUEST, info);
     }
 
     public void postOnReceivedError(int errorCode, String description, String failingUrl) {
         OnReceivedErrorInfo info = new OnReceivedErrorInfo(errorCode, description, failingUrl);
-        mHandler.sendMessage(mHandler.obtainMessage(MSG_ON_RECEIVED_ERROR, info));
+        postCallback(MSG_ON_RECEIVED_ERROR, info);
     }
 
 
@@ -0,0 +1,88 @@
+package com.ludei.chromium;
+
+import android.content.Context;
+import android.os.AsyncTask;
+
+import org.chromium.base.CommandLine;
+import org.chromium.base.SysUtils;
+import org.chromium.base.ThreadUtils;
+import org.chromium.content.browser.ChildProcessLauncher;
+
+/**
+ * Keeps the process ready to create LudeiContentViews quickly.
+ *
+ * {@link #prewarm(Context)} runs the process wide startup ahead of the first view and keeps
+ * spare bound renderer connections, so that a new view, including one recreated after a
+ * rotation, does not wait for a renderer service to be bound. The pool is refilled in the
+ * background whenever a view is created or destroyed.
+ *
+ * Low end devices keep a single spare, other devices two. Spares are released under memory
+ * pressure, see ChildProcessLauncher.
+ */
+public class LudeiEnginePool {
+    private static final int LOW_END_SPARE_RENDERERS = 1;
+    private static final int DEFAULT_SPARE_RENDERERS = 2;
+
+    private static Context sContext;
+    private static boolean sEnabled = true;
+
+    /**
+     * Starts the process wide startup, whose last stage fills the pool. Must be called on the UI
+     * thread, typically from Application.onCreate().
+     */
+    public static void prewarm(Context context) {
+        ThreadUtils.assertOnUiThread();
+        sContext = context.getApplicationContext() != null
+                ? context.getApplicationContext() : context;
+        LudeiStartup.start(context);
+    }
+
+    /**
+     * Enables or disables keeping spare renderers. Enabled by default.
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * @return the number of spare renderer connections the pool keeps.
+     */
+    public static int getTargetSpareRenderers() {
+        if (!sEnabled) return 0;
+        return SysUtils.isLowEndDevice() ? LOW_END_SPARE_RENDERERS : DEFAULT_SPARE_RENDERERS;
+    }
+
+    /**
+     * @return the number of spare renderer connections ready to be used.
+     */
+    public static int getSpareRendererCount() {
+        return ChildProcessLauncher.getSpareConnectionCount();
+    }
+
+    static void onViewCreated(Context context) {
+        if (sContext == null) {
+            sContext = context.getApplicationContext() != null
+                    ? context.getApplicationContext() : context;
+        }
+        replenish();
+    }
+
+    static void onViewDestroyed() {
+        replenish();
+    }
+
+    /**
+     * Binds spare renderer connections up to the target, on a background thread.
+     */
+    static void replenish() {
+        final Context context = sContext;
+        // The spare count depends on the command line, set up by the startup.
+        if (context == null || !sEnabled || !CommandLine.isInitialized()) return;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                ChildProcessLauncher.warmUp(context, getTargetSpareRenderers());
+            }
+        });
+    }
+}
@@ -0,0 +1,458 @@
+package com.ludei.chromium;
+
+import android.util.Log;
+import android.util.LruCache;
+import android.webkit.WebResourceResponse;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides on the IO thread how a request is intercepted, before the app's
+ * WebViewClient.shouldInterceptRequest() is entered.
+ *
+ * Rules are registered per URL prefix and matched through a prefix trie (longest prefix wins).
+ * A rule either serves the request, streams a body produced on a worker thread, or lets the
+ * request through to the network without calling the WebViewClient at all.
+ * Optionally, URLs for which the WebViewClient returned null are remembered per pattern (the URL
+ * without query and fragment) in a bounded cache, so the WebViewClient is only asked once.
+ *
+ * Rules may be changed from any thread; matching is lock-free.
+ */
+public class LudeiInterceptEngine {
+    private static final String TAG = "LudeiInterceptEngine";
+
+    private static final int DECISION_CACHE_SIZE = 512;
+    private static final int BODY_BUFFER_SIZE = 64 * 1024;
+    // How long a writer waits for the reader to make room before the body is truncated.
+    private static final long BODY_WRITE_TIMEOUT_MS = 30 * 1000;
+    // Writer threads, and bodies waiting for one, before new bodies are refused.
+    private static final int MAX_BODY_WRITERS = 8;
+    private static final int MAX_QUEUED_BODIES = 64;
+    private static final long BODY_WRITER_KEEP_ALIVE_MS = 30 * 1000;
+
+    /**
+     * Serves requests matching a rule.
+     */
+    public interface RequestHandler {
+        /**
+         * Called on the IO thread.
+         * @return the response, or null to load the URL from the network.
+         */
+        WebResourceResponse handleRequest(String url);
+    }
+
+    /**
+     * Produces the body of a response on a worker thread.
+     */
+    public interface BodyWriter {
+        /**
+         * Writes the body of <code>url</code>. The stream is closed once this returns or throws.
+         */
+        void writeBody(String url, OutputStream out) throws IOException;
+    }
+
+    abstract static class Rule {
+        /**
+         * @return the response, or null to load the URL from the network.
+         */
+        abstract InterceptedRequestData handle(String url);
+    }
+
+    private static class HandlerRule extends Rule {
+        private final RequestHandler mHandler;
+
+        HandlerRule(RequestHandler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        InterceptedRequestData handle(String url) {
+            WebResourceResponse response = mHandler.handleRequest(url);
+            if (response == null) return null;
+            return new InterceptedRequestData(response.getMimeType(), response.getEncoding(),
+                    response.getData());
+        }
+    }
+
+    private static class StreamingRule extends Rule {
+        private final String mMimeType;
+        private final String mEncoding;
+        private final BodyWriter mWriter;
+
+        StreamingRule(String mimeType, String encoding, BodyWriter writer) {
+            mMimeType = mimeType;
+            mEncoding = encoding;
+            mWriter = writer;
+        }
+
+        @Override
+        InterceptedRequestData handle(String url) {
+            return new InterceptedRequestData(mMimeType, mEncoding, new BodyStream(url, mWriter));
+        }
+    }
+
+    /**
+     * Body of a streamed response. The writer is started by the first read and fills a bounded
+     * ring buffer. Closing the stream, as the network stack does when the request goes away,
+     * fails the pending and later writes so the writer thread is released at once. Unlike piped
+     * streams, either side may be used from any thread.
+     */
+    private static class BodyStream extends InputStream {
+        private final String mUrl;
+        private final BodyWriter mWriter;
+        private final byte[] mBuffer = new byte[BODY_BUFFER_SIZE];
+        private final byte[] mReadByte = new byte[1];
+
+        // Guarded by this.
+        private int mReadPosition;
+        private int mCount;
+        private boolean mStarted;
+        private boolean mWriterDone;
+        private boolean mClosed;
+
+        BodyStream(String url, BodyWriter writer) {
+            mUrl = url;
+            mWriter = writer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return read(mReadByte, 0, 1) == -1 ? -1 : mReadByte[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            startWriterIfNeeded();
+            synchronized (this) {
+                while (mCount == 0) {
+                    if (mClosed) throw new IOException("Stream closed");
+                    if (mWriterDone) return -1;
+                    waitLocked(0);
+                }
+                int read = Math.min(length, mCount);
+                int first = Math.min(read, mBuffer.length - mReadPosition);
+                System.arraycopy(mBuffer, mReadPosition, buffer, offset, first);
+                System.arraycopy(mBuffer, 0, buffer, offset + first, read - first);
+                mReadPosition = (mReadPosition + read) % mBuffer.length;
+                mCount -= read;
+                notifyAll();
+                return read;
+            }
+        }
+
+        @Override
+        public synchronized int available() {
+            return mCount;
+        }
+
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        private void startWriterIfNeeded() {
+            synchronized (this) {
+                if (mStarted) return;
+                mStarted = true;
+            }
+            try {
+                getBodyWriterExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mWriter.writeBody(mUrl, new Sink());
+                        } catch (IOException e) {
+                            // The reader sees a truncated body, or is already gone.
+                            if (!isClosed()) Log.e(TAG, "Unable to write body of " + mUrl, e);
+                        } finally {
+                            finishWriting();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.e(TAG, "Too many bodies being written, dropping the body of " + mUrl);
+                finishWriting();
+            }
+        }
+
+        private synchronized boolean isClosed() {
+            return mClosed;
+        }
+
+        private synchronized void finishWriting() {
+            mWriterDone = true;
+            notifyAll();
+        }
+
+        private synchronized void write(byte[] buffer, int offset, int length)
+                throws IOException {
+            while (length > 0) {
+                // Re-armed for every chunk, so only a reader that stops reading times out.
+                long deadline = System.currentTimeMillis() + BODY_WRITE_TIMEOUT_MS;
+                while (mCount == mBuffer.length && !mClosed && !mWriterDone) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) throw new IOException("Body reader stalled");
+                    waitLocked(remaining);
+                }
+                if (mClosed) throw new IOException("Stream closed by the reader");
+                if (mWriterDone) throw new IOException("Stream closed by the writer");
+                int writePosition = (mReadPosition + mCount) % mBuffer.length;
+                int written = Math.min(length, Math.min(mBuffer.length - mCount,
+                        mBuffer.length - writePosition));
+                System.arraycopy(buffer, offset, mBuffer, writePosition, written);
+                mCount += written;
+                offset += written;
+                length -= written;
+                notifyAll();
+            }
+        }
+
+        private void waitLocked(long timeoutMs) throws InterruptedIOException {
+            try {
+                wait(timeoutMs);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        /**
+         * The stream handed to the BodyWriter.
+         */
+        private class Sink extends OutputStream {
+            private final byte[] mWriteByte = new byte[1];
+
+            @Override
+            public void write(int b) throws IOException {
+                mWriteByte[0] = (byte) b;
+                BodyStream.this.write(mWriteByte, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) throws IOException {
+                BodyStream.this.write(buffer, offset, length);
+            }
+
+            @Override
+            public void close() {
+                finishWriting();
+            }
+        }
+    }
+
+    private static final Rule PASS_THROUGH = new Rule() {
+        @Override
+        InterceptedRequestData handle(String url) {
+            return null;
+        }
+    };
+
+    /**
+     * Immutable prefix trie node. Children are kept in parallel arrays sorted by character.
+     */
+    private static class TrieNode {
+        final char[] mKeys;
+        final TrieNode[] mChildren;
+        final Rule mRule;
+
+        TrieNode(char[] keys, TrieNode[] children, Rule rule) {
+            mKeys = keys;
+            mChildren = children;
+            mRule = rule;
+        }
+
+        TrieNode child(char c) {
+            int index = Arrays.binarySearch(mKeys, c);
+            return index < 0 ? null : mChildren[index];
+        }
+    }
+
+    private static final TrieNode EMPTY_TRIE = new TrieNode(new char[0], new TrieNode[0], null);
+
+    private static ExecutorService sBodyWriterExecutor;
+
+    private final ArrayList<String> mPrefixes = new ArrayList<String>();
+    private final ArrayList<Rule> mRules = new ArrayList<Rule>();
+    private volatile TrieNode mTrie = EMPTY_TRIE;
+    private volatile LruCache<String, Boolean> mNotIntercepted;
+
+    /**
+     * Serves requests starting with <code>prefix</code> with <code>handler</code>, on the IO
+     * thread, instead of the WebViewClient.
+     */
+    public void addRule(String prefix, RequestHandler handler) {
+        putRule(prefix, new HandlerRule(handler));
+    }
+
+    /**
+     * Serves requests starting with <code>prefix</code> with a body written by
+     * <code>writer</code> on a worker thread and streamed to the network stack as it is written.
+     */
+    public void addStreamingRule(String prefix, String mimeType, String encoding,
+            BodyWriter writer) {
+        putRule(prefix, new StreamingRule(mimeType, encoding, writer));
+    }
+
+    /**
+     * Loads requests starting with <code>prefix</code> from the network without asking the
+     * WebViewClient.
+     */
+    public void addPassThroughRule(String prefix) {
+        putRule(prefix, PASS_THROUGH);
+    }
+
+    public synchronized void removeRule(String prefix) {
+        int index = mPrefixes.indexOf(prefix);
+        if (index == -1) return;
+        mPrefixes.remove(index);
+        mRules.remove(index);
+        mTrie = buildTrie(mPrefixes, mRules);
+    }
+
+    public synchronized void clearRules() {
+        mPrefixes.clear();
+        mRules.clear();
+        mTrie = EMPTY_TRIE;
+    }
+
+    /**
+     * Enables remembering the URLs for which the WebViewClient did not intercept the request.
+     * Only enable it when the WebViewClient decides from the URL path alone; the query and
+     * fragment are ignored.
+     */
+    public void setDecisionCacheEnabled(boolean enabled) {
+        mNotIntercepted = enabled ? new LruCache<String, Boolean>(DECISION_CACHE_SIZE) : null;
+    }
+
+    /**
+     * Forgets the remembered decisions, e.g. after the WebViewClient changed.
+     */
+    public void clearDecisionCache() {
+        LruCache<String, Boolean> cache = mNotIntercepted;
+        if (cache != null) cache.evictAll();
+    }
+
+    /**
+     * @return the rule for the longest registered prefix of <code>url</code>, or null.
+     */
+    Rule findRule(String url) {
+        TrieNode node = mTrie;
+        Rule rule = node.mRule;
+        for (int i = 0, length = url.length(); i < length; i++) {
+            node = node.child(url.charAt(i));
+            if (node == null) break;
+            if (node.mRule != null) rule = node.mRule;
+        }
+        return rule;
+    }
+
+    boolean isKnownNotIntercepted(String url) {
+        LruCache<String, Boolean> cache = mNotIntercepted;
+        return cache != null && cache.get(patternOf(url)) != null;
+    }
+
+    void rememberNotIntercepted(String url) {
+        LruCache<String, Boolean> cache = mNotIntercepted;
+        if (cache != null) cache.put(patternOf(url), Boolean.TRUE);
+    }
+
+    private static String patternOf(String url) {
+        int end = url.length();
+        int query = url.indexOf('?');
+        if (query != -1) end = query;
+        int fragment = url.indexOf('#');
+        if (fragment != -1 && fragment < end) end = fragment;
+        return end == url.length() ? url : url.substring(0, end);
+    }
+
+    private synchronized void putRule(String prefix, Rule rule) {
+        int index = mPrefixes.indexOf(prefix);
+        if (index == -1) {
+            mPrefixes.add(prefix);
+            mRules.add(rule);
+        } else {
+            mRules.set(index, rule);
+        }
+        mTrie = buildTrie(mPrefixes, mRules);
+    }
+
+    private static TrieNode buildTrie(ArrayList<String> prefixes, ArrayList<Rule> rules) {
+        MutableNode root = new MutableNode();
+        for (int i = 0; i < prefixes.size(); i++) {
+            MutableNode node = root;
+            String prefix = prefixes.get(i);
+            for (int j = 0; j < prefix.length(); j++) {
+                node = node.child(prefix.charAt(j));
+            }
+            node.mRule = rules.get(i);
+        }
+        return root.freeze();
+    }
+
+    private static class MutableNode {
+        final TreeMap<Character, MutableNode> mChildren =
+                new TreeMap<Character, MutableNode>();
+        Rule mRule;
+
+        MutableNode child(char c) {
+            MutableNode child = mChildren.get(c);
+            if (child == null) {
+                child = new MutableNode();
+                mChildren.put(c, child);
+            }
+            return child;
+        }
+
+        TrieNode freeze() {
+            char[] keys = new char[mChildren.size()];
+            TrieNode[] children = new TrieNode[mChildren.size()];
+            int i = 0;
+            for (Map.Entry<Character, MutableNode> entry : mChildren.entrySet()) {
+                keys[i] = entry.getKey();
+                children[i] = entry.getValue().freeze();
+                i++;
+            }
+            return new TrieNode(keys, children, mRule);
+        }
+    }
+
+    private static synchronized ExecutorService getBodyWriterExecutor() {
+        if (sBodyWriterExecutor == null) {
+            // Bounded, as every streamed request would otherwise get its own thread. The pool
+            // grows up to MAX_BODY_WRITERS before bodies are queued, so one writer waiting on a
+            // slow reader does not hold up the others.
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_BODY_WRITERS,
+                    MAX_BODY_WRITERS, BODY_WRITER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(MAX_QUEUED_BODIES),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r,
+                                    "InterceptBodyWriter-" + mCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sBodyWriterExecutor = executor;
+        }
+        return sBodyWriterExecutor;
+    }
+}
@@ -0,0 +1,540 @@
+package com.ludei.chromium;
+
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Cache of intercepted responses, consulted before the interceptors.
+ *
+ * Responses are keyed by URL and kept for a per-entry time to live. Small bodies are held in a
+ * size-bounded LRU memory tier, every body is also written to an optional disk tier. Hits are
+ * served as stream views over the cached bytes: the memory array or a memory mapping of the disk
+ * file, without copying. Bodies are captured while the network stack reads the intercepted
+ * stream, into pooled scratch buffers; bodies too large for any tier are not captured.
+ * Disk writes and deletions run in order on a single background thread, never on the thread
+ * reading the response.
+ *
+ * Intercepted requests carry no request headers, so there is nothing to vary on besides the URL.
+ *
+ * All methods may be called from any thread.
+ */
+public class LudeiResponseCache {
+    private static final String TAG = "LudeiResponseCache";
+
+    private static final int DISK_MAGIC = 0x4c524331;  // "LRC1"
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final int MIN_SCRATCH_SIZE = 4 * 1024;
+    private static final int MAX_POOLED_PER_SIZE = 4;
+    private static final int MAX_POOLED_SCRATCH_SIZE = 256 * 1024;
+
+    private static ExecutorService sDiskExecutor;
+
+    private static class Entry {
+        final String mMimeType;
+        final String mCharset;
+        final byte[] mData;
+        final long mExpiresAt;
+
+        Entry(String mimeType, String charset, byte[] data, long expiresAt) {
+            mMimeType = mimeType;
+            mCharset = charset;
+            mData = data;
+            mExpiresAt = expiresAt;
+        }
+    }
+
+    private final int mMaxMemoryEntrySize;
+    private final long mMaxDiskEntrySize;
+    // Largest body worth capturing.
+    private final long mMaxEntrySize;
+    private final LruCache<String, Entry> mMemory;
+    private final File mDiskDir;
+    private final long mMaxDiskBytes;
+    // Disk file name to size, in access order. Guarded by itself.
+    private final LinkedHashMap<String, Long> mDiskIndex =
+            new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long mDiskBytes;
+    private volatile long mDefaultTtlMillis;
+    // Scratch buffers by power of two size. Guarded by itself.
+    private final ArrayList<ArrayList<byte[]>> mScratchPool = new ArrayList<ArrayList<byte[]>>();
+
+    private volatile int mHitCount;
+    private volatile int mMissCount;
+
+    /**
+     * @param maxMemoryBytes size of the memory tier.
+     * @param diskDir directory of the disk tier, or null for a memory only cache.
+     * @param maxDiskBytes size of the disk tier.
+     */
+    public LudeiResponseCache(int maxMemoryBytes, File diskDir, long maxDiskBytes) {
+        mMaxMemoryEntrySize = maxMemoryBytes / 8;
+        mMemory = new LruCache<String, Entry>(Math.max(maxMemoryBytes, 1)) {
+            @Override
+            protected int sizeOf(String key, Entry value) {
+                return value.mData.length;
+            }
+        };
+        mDiskDir = diskDir;
+        mMaxDiskBytes = maxDiskBytes;
+        mMaxDiskEntrySize = maxDiskBytes / 8;
+        mMaxEntrySize = diskDir != null
+                ? Math.max(mMaxMemoryEntrySize, mMaxDiskEntrySize) : mMaxMemoryEntrySize;
+        if (diskDir != null) loadDiskIndex();
+    }
+
+    /**
+     * Sets the time to live of responses captured from interceptors. 0, the default, disables
+     * capturing; entries added with {@link #put} are not affected.
+     */
+    public void setDefaultTtlMillis(long ttlMillis) {
+        mDefaultTtlMillis = ttlMillis;
+    }
+
+    public long getDefaultTtlMillis() {
+        return mDefaultTtlMillis;
+    }
+
+    /**
+     * Adds a response.
+     * @param ttlMillis how long the response is served from the cache.
+     */
+    public void put(String url, String mimeType, String charset, byte[] data, long ttlMillis) {
+        if (ttlMillis <= 0) return;
+        store(url, new Entry(mimeType, charset, data, System.currentTimeMillis() + ttlMillis));
+    }
+
+    public void remove(String url) {
+        mMemory.remove(url);
+        if (mDiskDir == null) return;
+        final String name = fileNameOf(url);
+        // Dropped from the index at once so it is no longer served, and again on the disk
+        // thread, after any write of the same URL already queued there.
+        removeFromDiskIndex(name);
+        getDiskExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                removeFromDiskIndex(name);
+                new File(mDiskDir, name).delete();
+            }
+        });
+    }
+
+    public void clear() {
+        mMemory.evictAll();
+        if (mDiskDir == null) return;
+        getDiskExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mDiskIndex) {
+                    for (String name : mDiskIndex.keySet()) {
+                        new File(mDiskDir, name).delete();
+                    }
+                    mDiskIndex.clear();
+                    mDiskBytes = 0;
+                }
+            }
+        });
+    }
+
+    public int getHitCount() {
+        return mHitCount;
+    }
+
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the cached response for <code>url</code>, or null.
+     */
+    InterceptedRequestData get(String url) {
+        long now = System.currentTimeMillis();
+        Entry entry = mMemory.get(url);
+        if (entry != null) {
+            if (entry.mExpiresAt > now) {
+                mHitCount++;
+                return new InterceptedRequestData(entry.mMimeType, entry.mCharset,
+                        new ByteArrayInputStream(entry.mData));
+            }
+            mMemory.remove(url);
+        }
+        InterceptedRequestData data = mDiskDir != null ? readFromDisk(url, now) : null;
+        if (data != null) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return data;
+    }
+
+    /**
+     * Wraps an intercepted response so that its body is cached once fully read.
+     * @return <code>data</code> itself if capturing is disabled.
+     */
+    InterceptedRequestData capture(String url, InterceptedRequestData data) {
+        long ttl = mDefaultTtlMillis;
+        if (ttl <= 0 || data == null || data.getData() == null) return data;
+        return new InterceptedRequestData(data.getMimeType(), data.getCharset(),
+                new CapturingInputStream(url, data.getMimeType(), data.getCharset(),
+                        data.getData(), System.currentTimeMillis() + ttl));
+    }
+
+    private void store(final String url, final Entry entry) {
+        if (entry.mData.length <= mMaxMemoryEntrySize) mMemory.put(url, entry);
+        if (mDiskDir != null && entry.mData.length <= mMaxDiskEntrySize) {
+            getDiskExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    writeToDisk(url, entry);
+                }
+            });
+        }
+    }
+
+    private void removeFromDiskIndex(String name) {
+        synchronized (mDiskIndex) {
+            Long size = mDiskIndex.remove(name);
+            if (size != null) mDiskBytes -= size;
+        }
+    }
+
+    private InterceptedRequestData readFromDisk(String url, long now) {
+        String name = fileNameOf(url);
+        synchronized (mDiskIndex) {
+            if (mDiskIndex.get(name) == null) return null;
+        }
+        File file = new File(mDiskDir, name);
+        DataInputStream header = null;
+        try {
+            header = new DataInputStream(new FileInputStream(file));
+            if (header.readInt() != DISK_MAGIC) throw new IOException("Bad cache file " + name);
+            long expiresAt = header.readLong();
+            String mimeType = header.readUTF();
+            String charset = header.readUTF();
+            int length = header.readInt();
+            if (expiresAt <= now) {
+                remove(url);
+                return null;
+            }
+            long offset = file.length() - length;
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            ByteBuffer body;
+            try {
+                // The mapping stays valid after the file is closed.
+                body = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+            } finally {
+                raf.close();
+            }
+            Entry entry = null;
+            if (length <= mMaxMemoryEntrySize) {
+                // Promote to the memory tier.
+                byte[] bytes = new byte[length];
+                body.duplicate().get(bytes);
+                entry = new Entry(emptyToNull(mimeType), emptyToNull(charset), bytes, expiresAt);
+                mMemory.put(url, entry);
+            }
+            return new InterceptedRequestData(emptyToNull(mimeType), emptyToNull(charset),
+                    new ByteBufferInputStream(body));
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read cached response for " + url + ": " + e.getMessage());
+            remove(url);
+            return null;
+        } finally {
+            if (header != null) {
+                try {
+                    header.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+
+    private void writeToDisk(String url, Entry entry) {
+        String name = fileNameOf(url);
+        File tmp = new File(mDiskDir, name + TMP_SUFFIX);
+        File file = new File(mDiskDir, name);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(tmp));
+            out.writeInt(DISK_MAGIC);
+            out.writeLong(entry.mExpiresAt);
+            out.writeUTF(entry.mMimeType != null ? entry.mMimeType : "");
+            out.writeUTF(entry.mCharset != null ? entry.mCharset : "");
+            out.writeInt(entry.mData.length);
+            out.write(entry.mData);
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) throw new IOException("Unable to rename " + tmp);
+            synchronized (mDiskIndex) {
+                Long previous = mDiskIndex.put(name, file.length());
+                if (previous != null) mDiskBytes -= previous;
+                mDiskBytes += file.length();
+                trimDiskLocked();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to cache response for " + url + ": " + e.getMessage());
+            tmp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+
+    private void trimDiskLocked() {
+        Iterator<Map.Entry<String, Long>> it = mDiskIndex.entrySet().iterator();
+        while (mDiskBytes > mMaxDiskBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            mDiskBytes -= eldest.getValue();
+            new File(mDiskDir, eldest.getKey()).delete();
+            it.remove();
+        }
+    }
+
+    private void loadDiskIndex() {
+        if (!mDiskDir.isDirectory() && !mDiskDir.mkdirs()) {
+            Log.w(TAG, "Unable to create " + mDiskDir);
+            return;
+        }
+        File[] files = mDiskDir.listFiles();
+        if (files == null) return;
+        // Oldest first, so that the least recently written files are trimmed first.
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        synchronized (mDiskIndex) {
+            for (File file : files) {
+                if (file.getName().endsWith(TMP_SUFFIX)) {
+                    file.delete();
+                    continue;
+                }
+                mDiskIndex.put(file.getName(), file.length());
+                mDiskBytes += file.length();
+            }
+            trimDiskLocked();
+        }
+    }
+
+    private static String fileNameOf(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16));
+                name.append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static synchronized ExecutorService getDiskExecutor() {
+        if (sDiskExecutor == null) {
+            sDiskExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "LudeiResponseCacheDisk");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sDiskExecutor;
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private byte[] obtainScratch(int minSize) {
+        int sizeClass = 32 - Integer.numberOfLeadingZeros(Math.max(minSize, MIN_SCRATCH_SIZE) - 1);
+        synchronized (mScratchPool) {
+            if (sizeClass < mScratchPool.size()) {
+                ArrayList<byte[]> pool = mScratchPool.get(sizeClass);
+                if (pool != null && !pool.isEmpty()) return pool.remove(pool.size() - 1);
+            }
+        }
+        return new byte[1 << sizeClass];
+    }
+
+    private void recycleScratch(byte[] buffer) {
+        if (buffer.length > MAX_POOLED_SCRATCH_SIZE) return;
+        int sizeClass = 31 - Integer.numberOfLeadingZeros(buffer.length);
+        synchronized (mScratchPool) {
+            while (mScratchPool.size() <= sizeClass) mScratchPool.add(null);
+            ArrayList<byte[]> pool = mScratchPool.get(sizeClass);
+            if (pool == null) {
+                pool = new ArrayList<byte[]>();
+                mScratchPool.set(sizeClass, pool);
+            }
+            if (pool.size() < MAX_POOLED_PER_SIZE) pool.add(buffer);
+        }
+    }
+
+    /**
+     * Copies the bytes read from the intercepted stream and stores them once the end is reached.
+     */
+    private class CapturingInputStream extends FilterInputStream {
+        private final String mUrl;
+        private final String mMimeType;
+        private final String mCharset;
+        private final long mExpiresAt;
+        private final byte[] mSingleByte = new byte[1];
+        private byte[] mCapture = obtainScratch(MIN_SCRATCH_SIZE);
+        private int mCaptured;
+
+        CapturingInputStream(String url, String mimeType, String charset, InputStream in,
+                long expiresAt) {
+            super(in);
+            mUrl = url;
+            mMimeType = mimeType;
+            mCharset = charset;
+            mExpiresAt = expiresAt;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                commit();
+            } else {
+                mSingleByte[0] = (byte) b;
+                append(mSingleByte, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read == -1) {
+                commit();
+            } else {
+                append(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // The skipped range is not captured.
+            abandon();
+            return super.skip(count);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            abandon();
+            super.close();
+        }
+
+        private void append(byte[] buffer, int offset, int count) {
+            if (mCapture == null) return;
+            if (mCaptured + count > mMaxEntrySize) {
+                // Too large to be stored, stop copying.
+                abandon();
+                return;
+            }
+            if (mCaptured + count > mCapture.length) {
+                byte[] grown = obtainScratch(mCaptured + count);
+                System.arraycopy(mCapture, 0, grown, 0, mCaptured);
+                recycleScratch(mCapture);
+                mCapture = grown;
+            }
+            System.arraycopy(buffer, offset, mCapture, mCaptured, count);
+            mCaptured += count;
+        }
+
+        private void commit() {
+            if (mCapture == null) return;
+            store(mUrl, new Entry(mMimeType, mCharset, Arrays.copyOf(mCapture, mCaptured),
+                    mExpiresAt));
+            abandon();
+        }
+
+        private void abandon() {
+            if (mCapture == null) return;
+            recycleScratch(mCapture);
+            mCapture = null;
+        }
+    }
+
+    /**
+     * Stream view of a ByteBuffer.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) {
+            if (count == 0) return 0;
+            if (!mBuffer.hasRemaining()) return -1;
+            count = Math.min(count, mBuffer.remaining());
+            mBuffer.get(buffer, offset, count);
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            int skipped = (int) Math.min(Math.max(count, 0), mBuffer.remaining());
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.ludei.chromium;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.chromium.base.CommandLine;
+import org.chromium.base.PathUtils;
+import org.chromium.base.ResourceExtractor;
+import org.chromium.base.ThreadUtils;
+import org.chromium.base.library_loader.LibraryLoader;
+import org.chromium.base.library_loader.ProcessInitException;
+import org.chromium.content.browser.ChildProcessLauncher;
+import org.chromium.content.browser.DeviceUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process wide startup work of LudeiContentView, run as a graph of stages.
+ *
+ * Stages without UI thread requirements run in parallel on a small pool as soon as their
+ * dependencies completed:
+ * <pre>
+ *   commandLine --> libraryLoad
+ *               +-> childProcessWarmUp
+ *   registerResources
+ *   pakExtraction (started on the UI thread, runs on its own executor)
+ * </pre>
+ * The UI thread only joins at {@link #finishOnUiThread()}, which initializes the loaded library,
+ * as the native side requires this to happen on the thread it treats as its main thread, and,
+ * before that, at {@link #awaitCommandLine()} if it needs the command line.
+ *
+ * Call {@link #start(Context)} as early as possible, e.g. from Application.onCreate(), to overlap
+ * startup with the app's own initialization. LudeiContentView starts it otherwise.
+ */
+public class LudeiStartup {
+    private static final String TAG = "LudeiStartup";
+
+    private static final String COMMAND_LINE_FILE = "/data/local/tmp/content-shell-command-line";
+    private static final String[] MANDATORY_PAK_FILES = new String[] {"content_shell.pak"};
+    private static final String PRIVATE_DATA_DIRECTORY_SUFFIX = "content_shell";
+
+    private static final int STARTUP_THREADS = 3;
+
+    /**
+     * Timing of a startup stage.
+     */
+    public static class StageTiming {
+        public final String name;
+        public final String threadName;
+        /** Start of the stage, in milliseconds since {@link LudeiStartup#start(Context)}. */
+        public final long startMs;
+        public final long durationMs;
+
+        StageTiming(String name, String threadName, long startMs, long durationMs) {
+            this.name = name;
+            this.threadName = threadName;
+            this.startMs = startMs;
+            this.durationMs = durationMs;
+        }
+
+        @Override
+        public String toString() {
+            return name + " [" + threadName + "] +" + startMs + "ms " + durationMs + "ms";
+        }
+    }
+
+    private abstract class Stage implements Runnable {
+        final String mName;
+        final Stage[] mDependencies;
+        Future<?> mFuture;
+        Exception mError;
+
+        Stage(String name, Stage... dependencies) {
+            mName = name;
+            mDependencies = dependencies;
+        }
+
+        abstract void execute() throws Exception;
+
+        @Override
+        public void run() {
+            for (Stage dependency : mDependencies) {
+                // Dependencies are submitted first, so they are running or done by now.
+                dependency.await();
+                if (dependency.mError != null) {
+                    mError = dependency.mError;
+                    return;
+                }
+            }
+            long start = SystemClock.elapsedRealtime();
+            try {
+                execute();
+            } catch (Exception e) {
+                mError = e;
+            }
+            recordTiming(mName, start);
+        }
+
+        void await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mFuture.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (mError == null) mError = new RuntimeException(e.getCause());
+                    break;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private static LudeiStartup sInstance;
+
+    private final Context mContext;
+    private final long mStartTime = SystemClock.elapsedRealtime();
+    private final List<StageTiming> mTimings =
+            Collections.synchronizedList(new ArrayList<StageTiming>());
+    private final ArrayList<Stage> mStages = new ArrayList<Stage>();
+    private Stage mCommandLineStage;
+    private ExecutorService mExecutor;
+    private boolean mFinished;
+    private ProcessInitException mFailure;
+
+    /**
+     * Starts the startup stages if not started yet. Must be called on the UI thread.
+     */
+    public static LudeiStartup start(Context context) {
+        ThreadUtils.assertOnUiThread();
+        if (sInstance == null) {
+            sInstance = new LudeiStartup(context.getApplicationContext() != null
+                    ? context.getApplicationContext() : context);
+            sInstance.startStages();
+        }
+        return sInstance;
+    }
+
+    private LudeiStartup(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * @return the timings of the stages completed so far, in completion order.
+     */
+    public List<StageTiming> getStageTimings() {
+        synchronized (mTimings) {
+            return new ArrayList<StageTiming>(mTimings);
+        }
+    }
+
+    /**
+     * @return the startup of this process, or null if it was not started.
+     */
+    public static LudeiStartup get() {
+        return sInstance;
+    }
+
+    private void startStages() {
+        long start = SystemClock.elapsedRealtime();
+        PathUtils.setPrivateDataDirectorySuffix(PRIVATE_DATA_DIRECTORY_SUFFIX);
+        ResourceExtractor.setMandatoryPaksToExtract(MANDATORY_PAK_FILES);
+        // Only schedules the extraction, which runs on its own executor.
+        ResourceExtractor.get(mContext).startExtractingResources();
+        recordTiming("pakExtraction", start);
+
+        mExecutor = Executors.newFixedThreadPool(STARTUP_THREADS, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, "LudeiStartup-" + mCount.incrementAndGet());
+            }
+        });
+
+        Stage commandLine = new Stage("commandLine") {
+            @Override
+            void execute() {
+                // Initializing the command line must occur before loading the library.
+                if (!CommandLine.isInitialized()) {
+                    CommandLine.initFromFile(COMMAND_LINE_FILE);
+                    CommandLine.getInstance().appendSwitch("allow-file-access-from-files");
+                    if (!LudeiContentView.REMOTE_DEBUGGING) {
+                        CommandLine.getInstance().appendSwitch("disable-remote-debugging");
+                    }
+                    CommandLine.getInstance().appendSwitch("ignore-gpu-blacklist");
+                }
+                DeviceUtils.addDeviceSpecificUserAgentSwitch(mContext);
+            }
+        };
+        Stage registerResources = new Stage("registerResources") {
+            @Override
+            void execute() {
+                ResourceProvider.registerResources();
+            }
+        };
+        Stage libraryLoad = new Stage("libraryLoad", commandLine) {
+            @Override
+            void execute() throws ProcessInitException {
+                LibraryLoader.loadNow();
+            }
+        };
+        Stage childProcessWarmUp = new Stage("childProcessWarmUp", commandLine) {
+            @Override
+            void execute() {
+                ChildProcessLauncher.warmUp(mContext,
+                        LudeiEnginePool.getTargetSpareRenderers());
+            }
+        };
+        mCommandLineStage = commandLine;
+        // Submission order is a topological order of the graph.
+        submit(commandLine);
+        submit(registerResources);
+        submit(libraryLoad);
+        submit(childProcessWarmUp);
+        mExecutor.shutdown();
+    }
+
+    private void submit(Stage stage) {
+        mStages.add(stage);
+        stage.mFuture = mExecutor.submit(stage);
+    }
+
+    /**
+     * Waits for the command line to be initialized. Must be called on the UI thread.
+     */
+    public void awaitCommandLine() {
+        ThreadUtils.assertOnUiThread();
+        mCommandLineStage.await();
+    }
+
+    /**
+     * Waits for the background stages and initializes the native library. Must be called on the
+     * UI thread.
+     * @throws ProcessInitException if the native library could not be loaded.
+     */
+    public void finishOnUiThread() throws ProcessInitException {
+        ThreadUtils.assertOnUiThread();
+        if (mFinished) {
+            if (mFailure != null) throw mFailure;
+            return;
+        }
+        mFinished = true;
+        long start = SystemClock.elapsedRealtime();
+        for (Stage stage : mStages) {
+            stage.await();
+        }
+        recordTiming("join", start);
+        for (Stage stage : mStages) {
+            if (stage.mError == null) continue;
+            if (stage.mError instanceof ProcessInitException) {
+                mFailure = (ProcessInitException) stage.mError;
+                throw mFailure;
+            }
+            Log.e(TAG, "Startup stage " + stage.mName + " failed", stage.mError);
+        }
+
+        start = SystemClock.elapsedRealtime();
+        try {
+            LibraryLoader.ensureInitialized();
+        } catch (ProcessInitException e) {
+            mFailure = e;
+            throw e;
+        }
+        recordTiming("libraryInitialize", start);
+        Log.i(TAG, "Startup stages: " + getStageTimings());
+    }
+
+    private void recordTiming(String name, long start) {
+        long end = SystemClock.elapsedRealtime();
+        mTimings.add(new StageTiming(name, Thread.currentThread().getName(),
+                start - mStartTime, end - start));
+    }
+}
@@ -0,0 +1,146 @@
+package com.ludei.chromium;
+
+import android.os.SystemClock;
+
+import org.chromium.content.browser.ContentViewCore;
+import org.chromium.content.browser.ContentViewStatics;
+
+import java.util.WeakHashMap;
+
+/**
+ * Throttles the work a LudeiContentView makes the renderer do while it is not in use.
+ *
+ * States, from most to least expensive:
+ * <ul>
+ * <li>{@link #STATE_ACTIVE}: visible and resumed. Timers and requestAnimationFrame run at full
+ * rate, up to one wakeup per vsync.</li>
+ * <li>{@link #STATE_OFFSCREEN}: paused or not visible. The page is hidden, so Blink stops
+ * requestAnimationFrame and clamps timers to at most one wakeup per second. Hiding the page
+ * also makes the browser demote the renderer process to a background binding, so the system may
+ * deprioritize or reclaim it.</li>
+ * <li>{@link #STATE_TIMERS_PAUSED}: timers are suspended in every renderer by
+ * {@link #pauseTimers()}, no timer wakeups at all.</li>
+ * </ul>
+ * Time spent in each state is tracked so that the budgets can be checked.
+ */
+public class LudeiThrottleController {
+    private static final String TAG = "LudeiThrottleController";
+
+    public static final int STATE_ACTIVE = 0;
+    public static final int STATE_OFFSCREEN = 1;
+    public static final int STATE_TIMERS_PAUSED = 2;
+    private static final int STATE_COUNT = 3;
+
+    /**
+     * Upper bound of renderer timer wakeups per second in each state.
+     */
+    public static final int ACTIVE_MAX_WAKEUPS_PER_SECOND = 60;
+    public static final int OFFSCREEN_MAX_WAKEUPS_PER_SECOND = 1;
+    public static final int TIMERS_PAUSED_MAX_WAKEUPS_PER_SECOND = 0;
+
+    // Timers are suspended in all renderers at once, so this is shared by every view.
+    private static boolean sTimersPaused;
+    private static final WeakHashMap<LudeiThrottleController, Boolean> sControllers =
+            new WeakHashMap<LudeiThrottleController, Boolean>();
+
+    private final LudeiContentView mContentView;
+    private boolean mResumed = true;
+    private boolean mVisible = true;
+    private boolean mHidden;
+    private int mState = STATE_ACTIVE;
+    private long mStateStartMs = SystemClock.elapsedRealtime();
+    private final long[] mTimeInStateMs = new long[STATE_COUNT];
+
+    LudeiThrottleController(LudeiContentView contentView) {
+        mContentView = contentView;
+        sControllers.put(this, Boolean.TRUE);
+    }
+
+    /**
+     * Suspends timers in every renderer, for all views.
+     */
+    public static void pauseTimers() {
+        if (sTimersPaused) return;
+        updateAllAccounting();
+        sTimersPaused = true;
+        ContentViewStatics.setWebKitSharedTimersSuspended(true);
+    }
+
+    /**
+     * Resumes timers suspended by {@link #pauseTimers()}.
+     */
+    public static void resumeTimers() {
+        if (!sTimersPaused) return;
+        updateAllAccounting();
+        sTimersPaused = false;
+        ContentViewStatics.setWebKitSharedTimersSuspended(false);
+    }
+
+    private static void updateAllAccounting() {
+        for (LudeiThrottleController controller : sControllers.keySet()) {
+            controller.updateAccounting();
+        }
+    }
+
+    public static boolean areTimersPaused() {
+        return sTimersPaused;
+    }
+
+    /**
+     * @return the current state of the view.
+     */
+    public int getState() {
+        return sTimersPaused ? STATE_TIMERS_PAUSED : mState;
+    }
+
+    /**
+     * @return the time in milliseconds the view spent in <code>state</code>.
+     */
+    public long getTimeInStateMs(int state) {
+        updateAccounting();
+        return mTimeInStateMs[state];
+    }
+
+    void onResumed(boolean resumed) {
+        mResumed = resumed;
+        update();
+    }
+
+    void onVisibilityChanged(boolean visible) {
+        mVisible = visible;
+        update();
+    }
+
+    /**
+     * Applies the current state to a newly created ContentViewCore.
+     */
+    void onContentViewCoreReady() {
+        if (mHidden) applyHidden(true);
+    }
+
+    private void update() {
+        boolean hidden = !mResumed || !mVisible;
+        updateAccounting();
+        mState = hidden ? STATE_OFFSCREEN : STATE_ACTIVE;
+        if (hidden == mHidden) return;
+        mHidden = hidden;
+        applyHidden(hidden);
+    }
+
+    private void applyHidden(boolean hidden) {
+        ContentViewCore contentViewCore = mContentView.getContentViewCore();
+        if (contentViewCore == null) return;
+        if (hidden) {
+            contentViewCore.onHide();
+        } else {
+            contentViewCore.onShow();
+        }
+    }
+
+    private void updateAccounting() {
+        long now = SystemClock.elapsedRealtime();
+        int state = getState();
+        mTimeInStateMs[state] += now - mStateStartMs;
+        mStateStartMs = now;
+    }
+}
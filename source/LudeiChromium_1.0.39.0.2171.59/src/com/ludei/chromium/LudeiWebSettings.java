@@ -100,6 +100,29 @@ public class LudeiWebSettings {
     private boolean mBuiltInZoomControls = false;
     private boolean mDisplayZoomControls = true;
 
+    /**
+     * Immutable snapshot of the settings read on the IO thread for every request. A new
+     * snapshot is published whenever one of them changes, so IO thread reads never take
+     * mLudeiWebSettingsLock and never wait behind a UI thread preference push.
+     */
+    static final class IoThreadSettings {
+        final int cacheMode;
+        final boolean blockNetworkLoads;
+        final boolean allowFileAccess;
+        final boolean allowContentAccess;
+
+        IoThreadSettings(int cacheMode, boolean blockNetworkLoads, boolean allowFileAccess,
+                boolean allowContentAccess) {
+            this.cacheMode = cacheMode;
+            this.blockNetworkLoads = blockNetworkLoads;
+            this.allowFileAccess = allowFileAccess;
+            this.allowContentAccess = allowContentAccess;
+        }
+    }
+
+    // Written with mLudeiWebSettingsLock held, read without it.
+    private volatile IoThreadSettings mIoThreadSettings;
+
     static class LazyDefaultUserAgent{
         // Lazy Holder pattern
         private static final String sInstance = nativeGetDefaultUserAgent();
@@ -118,6 +141,16 @@ public class LudeiWebSettings {
 
     // A flag to avoid sending superfluous synchronization messages.
     private boolean mIsUpdateWebkitPrefsMessagePending = false;
+    // Nesting depth of beginBatchEdit() calls. While positive, preference changes only mark
+    // mWebkitPrefsDirty and are pushed to native once by the outermost endBatchEdit().
+    private int mBatchEditDepth = 0;
+    private boolean mWebkitPrefsDirty = false;
+    // When set, preference updates are posted to the UI thread and never block the caller.
+    // Updates arriving before the posted message runs are coalesced into a single native sync.
+    private boolean mAsyncWebkitPrefsUpdates = false;
+    // Number of native preference syncs done and avoided by batching/coalescing.
+    private int mNativeSyncCount = 0;
+    private int mSavedNativeSyncCount = 0;
     // Custom handler that queues messages to call native code on the UI thread.
     private final EventHandler mEventHandler;
 
@@ -168,15 +201,24 @@ public class LudeiWebSettings {
             assert Thread.holdsLock(mLudeiWebSettingsLock);
             if (mNativeLudeiWebSettings == 0) return;
             if (mHandler == null) return;
-            if (ThreadUtils.runningOnUiThread()) {
+            if (mBatchEditDepth > 0) {
+                // Pushed once by endBatchEdit().
+                if (mWebkitPrefsDirty) mSavedNativeSyncCount++;
+                mWebkitPrefsDirty = true;
+                return;
+            }
+            if (ThreadUtils.runningOnUiThread() && !mAsyncWebkitPrefsUpdates) {
                 updateWebkitPreferencesOnUiThreadLocked();
             } else {
-                // We're being called on a background thread, so post a message.
+                // We're being called on a background thread, or asynchronous updates were
+                // requested, so post a message.
                 if (mIsUpdateWebkitPrefsMessagePending) {
+                    mSavedNativeSyncCount++;
                     return;
                 }
                 mIsUpdateWebkitPrefsMessagePending = true;
                 mHandler.sendMessage(Message.obtain(null, UPDATE_WEBKIT_PREFERENCES));
+                if (mAsyncWebkitPrefsUpdates) return;
                 // We must block until the settings have been sync'd to native to
                 // ensure that they have taken effect.
                 try {
@@ -219,6 +261,7 @@ public class LudeiWebSettings {
                     Settings.System.TEXT_SHOW_PASSWORD, 1) == 1;
 
             mSupportLegacyQuirks = supportsLegacyQuirks;
+            publishIoThreadSettingsLocked();
         }
         // Defer initializing the native side until a native WebContents instance is set.
     }
@@ -264,6 +307,62 @@ public class LudeiWebSettings {
         }
     }
 
+    /**
+     * Starts a batch of settings changes. Until the matching {@link #endBatchEdit()}, changes are
+     * only recorded and the WebKit preferences are pushed to native once when the outermost batch
+     * ends. Calls may be nested.
+     */
+    public void beginBatchEdit() {
+        synchronized (mLudeiWebSettingsLock) {
+            mBatchEditDepth++;
+        }
+    }
+
+    /**
+     * Ends a batch started with {@link #beginBatchEdit()}, pushing the accumulated changes to
+     * native with a single sync if this is the outermost batch.
+     */
+    public void endBatchEdit() {
+        synchronized (mLudeiWebSettingsLock) {
+            if (mBatchEditDepth == 0) {
+                throw new IllegalStateException("endBatchEdit() without beginBatchEdit()");
+            }
+            if (--mBatchEditDepth == 0 && mWebkitPrefsDirty) {
+                mWebkitPrefsDirty = false;
+                mEventHandler.updateWebkitPreferencesLocked();
+            }
+        }
+    }
+
+    /**
+     * Controls whether WebKit preference updates block the caller. When asynchronous, updates
+     * from any thread are posted to the UI thread and coalesced until the posted message runs,
+     * so the new values take effect on the next UI thread loop instead of on return.
+     */
+    public void setAsyncPreferenceUpdates(boolean async) {
+        synchronized (mLudeiWebSettingsLock) {
+            mAsyncWebkitPrefsUpdates = async;
+        }
+    }
+
+    /**
+     * @return the number of WebKit preference syncs pushed to native.
+     */
+    public int getNativeSyncCount() {
+        synchronized (mLudeiWebSettingsLock) {
+            return mNativeSyncCount;
+        }
+    }
+
+    /**
+     * @return the number of WebKit preference syncs avoided by batching and coalescing.
+     */
+    public int getSavedNativeSyncCount() {
+        synchronized (mLudeiWebSettingsLock) {
+            return mSavedNativeSyncCount;
+        }
+    }
+
     /**
      * See {@link android.webkit.WebSettings#setBlockNetworkLoads}.
      */
@@ -275,6 +374,7 @@ public class LudeiWebSettings {
                         "application missing INTERNET permission");
             }
             mBlockNetworkLoads = flag;
+            publishIoThreadSettingsLocked();
         }
     }
 
@@ -283,9 +383,7 @@ public class LudeiWebSettings {
      */
     
     public boolean getBlockNetworkLoads() {
-        synchronized (mLudeiWebSettingsLock) {
-            return mBlockNetworkLoads;
-        }
+        return mIoThreadSettings.blockNetworkLoads;
     }
 
     /**
@@ -296,6 +394,7 @@ public class LudeiWebSettings {
         synchronized (mLudeiWebSettingsLock) {
             if (mAllowFileUrlAccess != allow) {
                 mAllowFileUrlAccess = allow;
+                publishIoThreadSettingsLocked();
             }
         }
     }
@@ -305,9 +404,7 @@ public class LudeiWebSettings {
      */
     
     public boolean getAllowFileAccess() {
-        synchronized (mLudeiWebSettingsLock) {
-            return mAllowFileUrlAccess;
-        }
+        return mIoThreadSettings.allowFileAccess;
     }
 
     /**
@@ -318,6 +415,7 @@ public class LudeiWebSettings {
         synchronized (mLudeiWebSettingsLock) {
             if (mAllowContentUrlAccess != allow) {
                 mAllowContentUrlAccess = allow;
+                publishIoThreadSettingsLocked();
             }
         }
     }
@@ -327,9 +425,7 @@ public class LudeiWebSettings {
      */
     
     public boolean getAllowContentAccess() {
-        synchronized (mLudeiWebSettingsLock) {
-            return mAllowContentUrlAccess;
-        }
+        return mIoThreadSettings.allowContentAccess;
     }
 
     /**
@@ -340,6 +436,7 @@ public class LudeiWebSettings {
         synchronized (mLudeiWebSettingsLock) {
             if (mCacheMode != mode) {
                 mCacheMode = mode;
+                publishIoThreadSettingsLocked();
             }
         }
     }
@@ -349,9 +446,20 @@ public class LudeiWebSettings {
      */
     
     public int getCacheMode() {
-        synchronized (mLudeiWebSettingsLock) {
-            return mCacheMode;
-        }
+        return mIoThreadSettings.cacheMode;
+    }
+
+    /**
+     * Returns the current snapshot of the settings consulted on the IO thread. Wait-free.
+     */
+    IoThreadSettings getIoThreadSettings() {
+        return mIoThreadSettings;
+    }
+
+    private void publishIoThreadSettingsLocked() {
+        assert Thread.holdsLock(mLudeiWebSettingsLock);
+        mIoThreadSettings = new IoThreadSettings(mCacheMode, mBlockNetworkLoads,
+                mAllowFileUrlAccess, mAllowContentUrlAccess);
     }
 
     /**
@@ -1497,6 +1605,9 @@ public class LudeiWebSettings {
         if (mNativeLudeiWebSettings != 0) {
             assert mEventHandler.mHandler != null;
             ThreadUtils.assertOnUiThread();
+            // Everything is pushed, including changes recorded by a batch still in progress.
+            mWebkitPrefsDirty = false;
+            mNativeSyncCount++;
             nativeUpdateWebkitPreferencesLocked(mNativeLudeiWebSettings);
         }
     }
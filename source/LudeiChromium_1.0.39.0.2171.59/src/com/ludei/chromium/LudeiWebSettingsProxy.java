@@ -559,6 +559,41 @@ public class LudeiWebSettingsProxy extends PublicWebSettings {
         return mAwSettings.getMediaPlaybackRequiresUserGesture();
     }
 
+    /**
+     * See {@link LudeiWebSettings#beginBatchEdit()}.
+     */
+    public void beginBatchEdit() {
+        mAwSettings.beginBatchEdit();
+    }
+
+    /**
+     * See {@link LudeiWebSettings#endBatchEdit()}.
+     */
+    public void endBatchEdit() {
+        mAwSettings.endBatchEdit();
+    }
+
+    /**
+     * See {@link LudeiWebSettings#setAsyncPreferenceUpdates(boolean)}.
+     */
+    public void setAsyncPreferenceUpdates(boolean async) {
+        mAwSettings.setAsyncPreferenceUpdates(async);
+    }
+
+    /**
+     * See {@link LudeiWebSettings#getNativeSyncCount()}.
+     */
+    public int getNativeSyncCount() {
+        return mAwSettings.getNativeSyncCount();
+    }
+
+    /**
+     * See {@link LudeiWebSettings#getSavedNativeSyncCount()}.
+     */
+    public int getSavedNativeSyncCount() {
+        return mAwSettings.getSavedNativeSyncCount();
+    }
+
 	public void setMixedContentMode(int mode) {
 		// TODO Auto-generated method stub
 		
@@ -0,0 +1,193 @@
+// Copyright 2014 The Chromium Authors. All rights reserved.
+// Use of this source code is governed by a BSD-style license that can be
+// found in the LICENSE file.
+
+package org.chromium.base;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * A container for a list of observers, optimized for frequent notification.
+ * <p/>
+ * Mutations replace an immutable {@link Snapshot} of the observers; notifying walks the current
+ * snapshot by index, which allocates nothing and is not affected by observers that add or remove
+ * observers (including themselves) while being notified:
+ * <pre>
+ *   CopyOnWriteObserverList.Snapshot&lt;Foo&gt; observers = mObservers.snapshot();
+ *   for (int i = 0; i &lt; observers.size(); i++) observers.get(i).onFoo();
+ * </pre>
+ * An observer removed during a notification is still notified by that notification if it had not
+ * been reached yet, unlike {@link ObserverList}.
+ * <p/>
+ * Observers are compared by identity. An identity map keeps membership checks O(1); adding or
+ * removing copies the snapshot, which is expected to be rare compared to notifications.
+ * <p/>
+ * This class is not threadsafe, see {@link CopyOnWriteObserverList.Synchronized} for a variant
+ * that allows registration from any thread.
+ *
+ * @param <E> The type of observers that this list should hold.
+ */
+@NotThreadSafe
+public class CopyOnWriteObserverList<E> implements Iterable<E> {
+    /**
+     * An immutable view of the observers at some point in time.
+     */
+    public static final class Snapshot<E> {
+        private final Object[] mObservers;
+
+        private Snapshot(Object[] observers) {
+            mObservers = observers;
+        }
+
+        public int size() {
+            return mObservers.length;
+        }
+
+        @SuppressWarnings("unchecked")
+        public E get(int index) {
+            return (E) mObservers[index];
+        }
+    }
+
+    private static final Snapshot<?> EMPTY = new Snapshot<Object>(new Object[0]);
+
+    private final IdentityHashMap<E, Integer> mIndices = new IdentityHashMap<E, Integer>();
+    // Volatile so that the synchronized variant can be notified without locking.
+    private volatile Snapshot<E> mSnapshot = emptySnapshot();
+
+    public CopyOnWriteObserverList() {}
+
+    @SuppressWarnings("unchecked")
+    private static <E> Snapshot<E> emptySnapshot() {
+        return (Snapshot<E>) EMPTY;
+    }
+
+    /**
+     * Add an observer to the list. If a notification is in progress, the observer is not visible
+     * to it.
+     *
+     * @return true if the observer list changed as a result of the call.
+     */
+    public boolean addObserver(E obs) {
+        if (obs == null || mIndices.containsKey(obs)) return false;
+        Object[] current = mSnapshot.mObservers;
+        Object[] observers = Arrays.copyOf(current, current.length + 1);
+        observers[current.length] = obs;
+        mIndices.put(obs, current.length);
+        mSnapshot = new Snapshot<E>(observers);
+        return true;
+    }
+
+    /**
+     * Remove an observer from the list if it is in the list.
+     *
+     * @return true if an element was removed as a result of this call.
+     */
+    public boolean removeObserver(E obs) {
+        if (obs == null) return false;
+        Integer index = mIndices.remove(obs);
+        if (index == null) return false;
+        Object[] current = mSnapshot.mObservers;
+        if (current.length == 1) {
+            mSnapshot = emptySnapshot();
+            return true;
+        }
+        int removed = index;
+        Object[] observers = new Object[current.length - 1];
+        System.arraycopy(current, 0, observers, 0, removed);
+        System.arraycopy(current, removed + 1, observers, removed, observers.length - removed);
+        for (int i = removed; i < observers.length; i++) {
+            @SuppressWarnings("unchecked")
+            E moved = (E) observers[i];
+            mIndices.put(moved, i);
+        }
+        mSnapshot = new Snapshot<E>(observers);
+        return true;
+    }
+
+    public boolean hasObserver(E obs) {
+        return obs != null && mIndices.containsKey(obs);
+    }
+
+    public void clear() {
+        mIndices.clear();
+        mSnapshot = emptySnapshot();
+    }
+
+    /**
+     * Returns the observers registered at the time of the call. The snapshot does not change
+     * when observers are added or removed later.
+     */
+    public Snapshot<E> snapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Returns an iterator over the current snapshot. Prefer {@link #snapshot()} on hot paths,
+     * it does not allocate.
+     */
+    @Override
+    public Iterator<E> iterator() {
+        final Snapshot<E> snapshot = mSnapshot;
+        return new Iterator<E>() {
+            private int mIndex = 0;
+
+            @Override
+            public boolean hasNext() {
+                return mIndex < snapshot.size();
+            }
+
+            @Override
+            public E next() {
+                if (mIndex >= snapshot.size()) throw new NoSuchElementException();
+                return snapshot.get(mIndex++);
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public int size() {
+        return mSnapshot.size();
+    }
+
+    public boolean isEmpty() {
+        return mSnapshot.size() == 0;
+    }
+
+    /**
+     * A CopyOnWriteObserverList that may be modified from any thread. Notification through
+     * {@link #snapshot()} does not take the lock.
+     */
+    @ThreadSafe
+    public static class Synchronized<E> extends CopyOnWriteObserverList<E> {
+        @Override
+        public synchronized boolean addObserver(E obs) {
+            return super.addObserver(obs);
+        }
+
+        @Override
+        public synchronized boolean removeObserver(E obs) {
+            return super.removeObserver(obs);
+        }
+
+        @Override
+        public synchronized boolean hasObserver(E obs) {
+            return super.hasObserver(obs);
+        }
+
+        @Override
+        public synchronized void clear() {
+            super.clear();
+        }
+    }
+}
@@ -42,6 +42,38 @@ public class MemoryPressureListener {
     private static final String ACTION_TRIM_MEMORY_MODERATE =
             "org.chromium.base.ACTION_TRIM_MEMORY_MODERATE";
 
+    /**
+     * Java side observer of the memory signals of the system.
+     */
+    public interface Observer {
+        /**
+         * @param level The ComponentCallbacks2 trim level, TRIM_MEMORY_COMPLETE for
+         *              onLowMemory().
+         */
+        public void onMemoryPressure(int level);
+    }
+
+    private static final CopyOnWriteObserverList<Observer> sObservers =
+            new CopyOnWriteObserverList.Synchronized<Observer>();
+
+    /**
+     * Adds an observer notified of every trim level, on the thread the system reports it on.
+     */
+    public static void addObserver(Observer observer) {
+        sObservers.addObserver(observer);
+    }
+
+    public static void removeObserver(Observer observer) {
+        sObservers.removeObserver(observer);
+    }
+
+    private static void notifyObservers(int level) {
+        CopyOnWriteObserverList.Snapshot<Observer> observers = sObservers.snapshot();
+        for (int i = 0; i < observers.size(); i++) {
+            observers.get(i).onMemoryPressure(level);
+        }
+    }
+
     @CalledByNative
     private static void registerSystemCallback(Context context) {
         context.registerComponentCallbacks(
@@ -54,6 +86,7 @@ public class MemoryPressureListener {
                     @Override
                     public void onLowMemory() {
                         nativeOnMemoryPressure(MemoryPressureLevelList.MEMORY_PRESSURE_CRITICAL);
+                        notifyObservers(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
                     }
 
                     @Override
@@ -84,6 +117,7 @@ public class MemoryPressureListener {
     }
 
     public static void maybeNotifyMemoryPresure(int level) {
+        notifyObservers(level);
         if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
             nativeOnMemoryPressure(MemoryPressureLevelList.MEMORY_PRESSURE_CRITICAL);
         } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND ||
@@ -8,16 +8,19 @@ import android.os.Debug;
 import android.os.Debug.MemoryInfo;
 import android.util.Log;
 
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.PrintStream;
-import java.util.LinkedList;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * PerfTraceEvent can be used like TraceEvent, but is intended for
@@ -35,6 +38,11 @@ import java.util.List;
  * the right ones.  For example, we specify the name exactly in
  * the @TracePerf annotation.  Thus, unlike TraceEvent, we do not
  * support an implicit trace name based on the callstack.
+ *
+ * Events are recorded without locking or allocation into preallocated per-thread ring buffers
+ * of primitives, names being stored as ids interned by {@link #setFilter(List)}. Each thread keeps
+ * its last {@link #EVENTS_PER_THREAD} events. The JSON output is only produced, and streamed,
+ * when the data is dumped.
  */
 public class PerfTraceEvent {
     private static final int MAX_NAME_LENGTH = 40;
@@ -60,22 +68,109 @@ public class PerfTraceEvent {
         }
     }
 
-    private static boolean sEnabled = false;
-    private static boolean sTrackTiming = true;
-    private static boolean sTrackMemory = false;
+    private static final EventType[] EVENT_TYPES = EventType.values();
+
+    // Capacity of each per-thread ring buffer, in events.
+    @VisibleForTesting
+    static final int EVENTS_PER_THREAD = 8192;
 
-    // A list of performance trace event strings.
-    // Events are stored as a JSON dict much like TraceEvent.
-    // E.g. timestamp is in microseconds.
-    private static JSONArray sPerfTraceStrings;
+    // Marks an event without memory information.
+    private static final int NO_MEMORY = -1;
 
-    // A filter for performance tracing.  Only events that match a
-    // string in the list are saved.  Presence of a filter does not
-    // necessarily mean perf tracing is enabled.
-    private static List<String> sFilter;
+    private static volatile boolean sEnabled = false;
+    private static volatile boolean sTrackTiming = true;
+    private static volatile boolean sTrackMemory = false;
+
+    // A filter for performance tracing.  Presence of a filter does not necessarily mean perf
+    // tracing is enabled.  Replaced, never mutated.
+    private static volatile Filter sFilter;
 
     // Nanosecond start time of performance tracing.
-    private static long sBeginNanoTime;
+    private static volatile long sBeginNanoTime;
+
+    // Bumped on every enable so stale per-thread buffers start over.
+    private static volatile int sGeneration;
+
+    // Buffers of every thread that recorded events in the current generation.
+    private static final List<EventBuffer> sBuffers = new CopyOnWriteArrayList<EventBuffer>();
+
+    private static final ThreadLocal<EventBuffer> sThreadBuffer = new ThreadLocal<EventBuffer>();
+
+    /**
+     * The event names to record and their interned ids. Ids are only meaningful together with
+     * the filter that assigned them, so recording threads and the dump resolve them through the
+     * same instance.
+     */
+    private static final class Filter {
+        // Only events whose name is a key are saved, the value being the id of the name.
+        final Map<String, Integer> ids;
+        // Interned names: timing names and their memory counterparts, indexed by id.
+        final String[] names;
+        // Id of the memory trace name for each timing name id.
+        final int[] memoryNameIds;
+
+        Filter(List<String> strings) {
+            ids = new HashMap<String, Integer>();
+            List<String> nameList = new ArrayList<String>();
+            for (String name : strings) {
+                if (ids.containsKey(name)) continue;
+                ids.put(name, nameList.size());
+                nameList.add(name);
+            }
+            memoryNameIds = new int[nameList.size()];
+            for (int i = 0; i < memoryNameIds.length; i++) {
+                memoryNameIds[i] = nameList.size();
+                nameList.add(makeMemoryTraceNameFromTimingName(nameList.get(i)));
+            }
+            names = nameList.toArray(new String[nameList.size()]);
+        }
+
+        /**
+         * @return The interned id of the name if it matches the filter; else -1.
+         */
+        int idOf(String name) {
+            Integer id = ids.get(name);
+            return id != null ? id : -1;
+        }
+    }
+
+    /**
+     * Single-writer ring buffer of events. Written by its owner thread only, read by the
+     * dumping thread once tracing is disabled.
+     */
+    private static final class EventBuffer {
+        final int generation;
+        // The filter the recorded name ids belong to.
+        final Filter filter;
+        final long[] timestampsUs = new long[EVENTS_PER_THREAD];
+        final int[] nameIds = new int[EVENTS_PER_THREAD];
+        final int[] eventIds = new int[EVENTS_PER_THREAD];
+        final byte[] types = new byte[EVENTS_PER_THREAD];
+        final int[] memory = new int[EVENTS_PER_THREAD];
+        final MemoryInfo memoryInfo = new MemoryInfo();
+        // Total number of events written; the buffer holds the last EVENTS_PER_THREAD.
+        volatile long count;
+
+        EventBuffer(int generation, Filter filter) {
+            this.generation = generation;
+            this.filter = filter;
+        }
+
+        void add(int nameId, int eventId, EventType type, long timestampUs, int pss) {
+            // A writer that raced with setEnabled(false) must not overwrite slots of a full
+            // ring while they are being dumped.
+            if (!sEnabled || sGeneration != generation) return;
+            long n = count;
+            int slot = (int) (n % EVENTS_PER_THREAD);
+            timestampsUs[slot] = timestampUs;
+            nameIds[slot] = nameId;
+            eventIds[slot] = eventId;
+            types[slot] = (byte) type.ordinal();
+            memory[slot] = pss;
+            // Publishes the slot.
+            count = n + 1;
+        }
+    }
 
     /**
      * Specifies what event names will be tracked.
@@ -84,7 +179,7 @@ public class PerfTraceEvent {
      */
     @VisibleForTesting
     public static synchronized void setFilter(List<String> strings) {
-        sFilter = new LinkedList<String>(strings);
+        sFilter = new Filter(strings);
     }
 
     /**
@@ -98,13 +193,15 @@ public class PerfTraceEvent {
         }
         if (enabled) {
             sBeginNanoTime = System.nanoTime();
-            sPerfTraceStrings = new JSONArray();
+            sBuffers.clear();
+            sGeneration++;
+            sEnabled = true;
         } else {
+            sEnabled = false;
             dumpPerf();
-            sPerfTraceStrings = null;
+            sBuffers.clear();
             sFilter = null;
         }
-        sEnabled = enabled;
     }
 
     /**
@@ -148,19 +245,21 @@ public class PerfTraceEvent {
      * is enabled.
      */
     @VisibleForTesting
-    public static synchronized boolean enabled() {
+    public static boolean enabled() {
         return sEnabled;
     }
 
     /**
      * Record an "instant" perf trace event.  E.g. "screen update happened".
      */
-    public static synchronized void instant(String name) {
+    public static void instant(String name) {
         // Instant doesn't really need/take an event id, but this should be okay.
-        final long eventId = name.hashCode();
+        final int eventId = name.hashCode();
         TraceEvent.instant(name);
-        if (sEnabled && matchesFilter(name)) {
-            savePerfString(name, eventId, EventType.INSTANT, false);
+        Filter filter = sEnabled ? sFilter : null;
+        int nameId = filter != null ? filter.idOf(name) : -1;
+        if (nameId >= 0) {
+            savePerfEvent(filter, nameId, eventId, EventType.INSTANT, false);
         }
     }
 
@@ -170,18 +269,20 @@ public class PerfTraceEvent {
      * Begin trace events should have a matching end event.
      */
     @VisibleForTesting
-    public static synchronized void begin(String name) {
-        final long eventId = name.hashCode();
+    public static void begin(String name) {
+        final int eventId = name.hashCode();
         TraceEvent.startAsync(name, eventId);
-        if (sEnabled && matchesFilter(name)) {
+        Filter filter = sEnabled ? sFilter : null;
+        int nameId = filter != null ? filter.idOf(name) : -1;
+        if (nameId >= 0) {
             // Done before calculating the starting perf data to ensure calculating the memory usage
             // does not influence the timing data.
             if (sTrackMemory) {
-                savePerfString(makeMemoryTraceNameFromTimingName(name), eventId, EventType.START,
+                savePerfEvent(filter, filter.memoryNameIds[nameId], eventId, EventType.START,
                         true);
             }
             if (sTrackTiming) {
-                savePerfString(name, eventId, EventType.START, false);
+                savePerfEvent(filter, nameId, eventId, EventType.START, false);
             }
         }
     }
@@ -192,17 +293,19 @@ public class PerfTraceEvent {
      * graph code.
      */
     @VisibleForTesting
-    public static synchronized void end(String name) {
-        final long eventId = name.hashCode();
+    public static void end(String name) {
+        final int eventId = name.hashCode();
         TraceEvent.finishAsync(name, eventId);
-        if (sEnabled && matchesFilter(name)) {
+        Filter filter = sEnabled ? sFilter : null;
+        int nameId = filter != null ? filter.idOf(name) : -1;
+        if (nameId >= 0) {
             if (sTrackTiming) {
-                savePerfString(name, eventId, EventType.FINISH, false);
+                savePerfEvent(filter, nameId, eventId, EventType.FINISH, false);
             }
             // Done after calculating the ending perf data to ensure calculating the memory usage
             // does not influence the timing data.
             if (sTrackMemory) {
-                savePerfString(makeMemoryTraceNameFromTimingName(name), eventId, EventType.FINISH,
+                savePerfEvent(filter, filter.memoryNameIds[nameId], eventId, EventType.FINISH,
                         true);
             }
         }
@@ -213,17 +316,19 @@ public class PerfTraceEvent {
      * Begin trace events should have a matching end event.
      */
     @VisibleForTesting
-    public static synchronized void begin(String name, MemoryInfo memoryInfo) {
-        final long eventId = name.hashCode();
+    public static void begin(String name, MemoryInfo memoryInfo) {
+        final int eventId = name.hashCode();
         TraceEvent.startAsync(name, eventId);
-        if (sEnabled && matchesFilter(name)) {
+        Filter filter = sEnabled ? sFilter : null;
+        int nameId = filter != null ? filter.idOf(name) : -1;
+        if (nameId >= 0) {
             // Done before calculating the starting perf data to ensure calculating the memory usage
             // does not influence the timing data.
             long timestampUs = (System.nanoTime() - sBeginNanoTime) / 1000;
-            savePerfString(makeMemoryTraceNameFromTimingName(name), eventId, EventType.START,
-                    timestampUs, memoryInfo);
+            savePerfEvent(threadBuffer(filter), filter.memoryNameIds[nameId], eventId,
+                    EventType.START, timestampUs, memoryInfo);
             if (sTrackTiming) {
-                savePerfString(name, eventId, EventType.START, false);
+                savePerfEvent(filter, nameId, eventId, EventType.START, false);
             }
         }
     }
@@ -234,75 +339,73 @@ public class PerfTraceEvent {
      * graph code.
      */
     @VisibleForTesting
-    public static synchronized void end(String name, MemoryInfo memoryInfo) {
-        final long eventId = name.hashCode();
+    public static void end(String name, MemoryInfo memoryInfo) {
+        final int eventId = name.hashCode();
         TraceEvent.finishAsync(name, eventId);
-        if (sEnabled && matchesFilter(name)) {
+        Filter filter = sEnabled ? sFilter : null;
+        int nameId = filter != null ? filter.idOf(name) : -1;
+        if (nameId >= 0) {
             if (sTrackTiming) {
-                savePerfString(name, eventId, EventType.FINISH, false);
+                savePerfEvent(filter, nameId, eventId, EventType.FINISH, false);
             }
             // Done after calculating the instant perf data to ensure calculating the memory usage
             // does not influence the timing data.
             long timestampUs = (System.nanoTime() - sBeginNanoTime) / 1000;
-            savePerfString(makeMemoryTraceNameFromTimingName(name), eventId, EventType.FINISH,
-                    timestampUs, memoryInfo);
+            savePerfEvent(threadBuffer(filter), filter.memoryNameIds[nameId], eventId,
+                    EventType.FINISH, timestampUs, memoryInfo);
         }
     }
 
-    /**
-     * Determine if we are interested in this trace event.
-     * @return True if the name matches the allowed filter; else false.
-     */
-    private static boolean matchesFilter(String name) {
-        return sFilter != null ? sFilter.contains(name) : false;
+    private static EventBuffer threadBuffer(Filter filter) {
+        EventBuffer buffer = sThreadBuffer.get();
+        int generation = sGeneration;
+        if (buffer == null || buffer.generation != generation || buffer.filter != filter) {
+            buffer = new EventBuffer(generation, filter);
+            sThreadBuffer.set(buffer);
+            sBuffers.add(buffer);
+        }
+        return buffer;
     }
 
     /**
-     * Save a perf trace event as a JSON dict.  The format mirrors a TraceEvent dict.
+     * Save a perf trace event in the calling thread's buffer.
      *
-     * @param name The trace data
+     * @param filter The filter that interned the name
+     * @param nameId The interned name of the event
      * @param id The id of the event
      * @param type the type of trace event (I, S, F)
      * @param includeMemory Whether to include current browser process memory usage in the trace.
      */
-    private static void savePerfString(String name, long id, EventType type,
+    private static void savePerfEvent(Filter filter, int nameId, int id, EventType type,
             boolean includeMemory) {
         long timestampUs = (System.nanoTime() - sBeginNanoTime) / 1000;
+        EventBuffer buffer = threadBuffer(filter);
         MemoryInfo memInfo = null;
         if (includeMemory) {
-            memInfo = new MemoryInfo();
+            memInfo = buffer.memoryInfo;
             Debug.getMemoryInfo(memInfo);
         }
-        savePerfString(name, id, type, timestampUs, memInfo);
+        savePerfEvent(buffer, nameId, id, type, timestampUs, memInfo);
     }
 
     /**
-     * Save a perf trace event as a JSON dict.  The format mirrors a TraceEvent dict.
+     * Save a perf trace event.  The dumped format mirrors a TraceEvent dict.
      *
-     * @param name The trace data
+     * @param buffer The buffer of the calling thread
+     * @param nameId The interned name of the event
      * @param id The id of the event
      * @param type the type of trace event (I, S, F)
      * @param timestampUs The time stamp at which this event was recorded
-     * @param memoryInfo Memory details to be included in this perf string, null if
+     * @param memoryInfo Memory details to be included in this perf event, null if
      *                   no memory details are to be included.
      */
-    private static void savePerfString(String name, long id, EventType type, long timestampUs,
-            MemoryInfo memoryInfo) {
-        try {
-            JSONObject traceObj = new JSONObject();
-            traceObj.put("cat", "Java");
-            traceObj.put("ts", timestampUs);
-            traceObj.put("ph", type);
-            traceObj.put("name", name);
-            traceObj.put("id", id);
-            if (memoryInfo != null) {
-                int pss = memoryInfo.nativePss + memoryInfo.dalvikPss + memoryInfo.otherPss;
-                traceObj.put("mem", pss);
-            }
-            sPerfTraceStrings.put(traceObj);
-        } catch (JSONException e) {
-            throw new RuntimeException(e);
+    private static void savePerfEvent(EventBuffer buffer, int nameId, int id, EventType type,
+            long timestampUs, MemoryInfo memoryInfo) {
+        int pss = NO_MEMORY;
+        if (memoryInfo != null) {
+            pss = memoryInfo.nativePss + memoryInfo.dalvikPss + memoryInfo.otherPss;
         }
+        buffer.add(nameId, id, type, timestampUs, pss);
     }
 
     /**
@@ -349,28 +452,76 @@ public class PerfTraceEvent {
 
     /**
      * Dump all performance data we have saved up to the log.
-     * Output as JSON for parsing convenience.
+     * Output as JSON for parsing convenience.  Events of all threads are merged in timestamp
+     * order and streamed one by one, the whole document is never built in memory.
      */
     private static void dumpPerf() {
-        String json = sPerfTraceStrings.toString();
-
-        if (sOutputFile == null) {
-            System.out.println(json);
-        } else {
-            try {
-                PrintStream stream = new PrintStream(new FileOutputStream(sOutputFile, true));
+        Writer writer = null;
+        try {
+            if (sOutputFile == null) {
+                writer = new BufferedWriter(new OutputStreamWriter(System.out));
+            } else {
+                writer = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(sOutputFile, true)));
+            }
+            writeEvents(writer);
+            // Matches the println() the JSON used to be printed with.
+            if (sOutputFile == null) writer.write('\n');
+            writer.flush();
+        } catch (IOException ex) {
+            Log.e("PerfTraceEvent", "Unable to dump perf trace data to output file.");
+        } finally {
+            if (writer != null && sOutputFile != null) {
                 try {
-                    stream.print(json);
-                } finally {
-                    try {
-                        stream.close();
-                    } catch (Exception ex) {
-                        Log.e("PerfTraceEvent", "Unable to close perf trace output file.");
-                    }
+                    writer.close();
+                } catch (IOException ex) {
+                    Log.e("PerfTraceEvent", "Unable to close perf trace output file.");
                 }
-            } catch (FileNotFoundException ex) {
-                Log.e("PerfTraceEvent", "Unable to dump perf trace data to output file.");
             }
         }
     }
+
+    private static void writeEvents(Writer writer) throws IOException {
+        EventBuffer[] buffers = sBuffers.toArray(new EventBuffer[0]);
+        long[] next = new long[buffers.length];
+        long[] end = new long[buffers.length];
+        for (int i = 0; i < buffers.length; i++) {
+            end[i] = buffers[i].count;
+            next[i] = Math.max(0, end[i] - EVENTS_PER_THREAD);
+        }
+        boolean first = true;
+        writer.write('[');
+        while (true) {
+            // Pick the oldest pending event among all threads.
+            int oldest = -1;
+            long oldestTimestamp = Long.MAX_VALUE;
+            for (int i = 0; i < buffers.length; i++) {
+                if (next[i] >= end[i]) continue;
+                long timestamp = buffers[i].timestampsUs[(int) (next[i] % EVENTS_PER_THREAD)];
+                if (timestamp < oldestTimestamp) {
+                    oldestTimestamp = timestamp;
+                    oldest = i;
+                }
+            }
+            if (oldest == -1) break;
+            EventBuffer buffer = buffers[oldest];
+            int slot = (int) (next[oldest]++ % EVENTS_PER_THREAD);
+            if (!first) writer.write(',');
+            first = false;
+            writer.write("{\"cat\":\"Java\",\"ts\":");
+            writer.write(Long.toString(buffer.timestampsUs[slot]));
+            writer.write(",\"ph\":\"");
+            writer.write(EVENT_TYPES[buffer.types[slot]].toString());
+            writer.write("\",\"name\":");
+            writer.write(JSONObject.quote(buffer.filter.names[buffer.nameIds[slot]]));
+            writer.write(",\"id\":");
+            writer.write(Integer.toString(buffer.eventIds[slot]));
+            if (buffer.memory[slot] != NO_MEMORY) {
+                writer.write(",\"mem\":");
+                writer.write(Integer.toString(buffer.memory[slot]));
+            }
+            writer.write('}');
+        }
+        writer.write(']');
+    }
 }
@@ -8,23 +8,43 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.os.AsyncTask;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 /**
  * Handles extracting the necessary resources bundled in an APK and moving them to a location on
@@ -36,6 +56,11 @@ public class ResourceExtractor {
     private static final String LAST_LANGUAGE = "Last language";
     private static final String PAK_FILENAMES = "Pak filenames";
     private static final String ICU_DATA_FILENAME = "icudtl.dat";
+    private static final String MANIFEST_FILENAME = "pak_manifest";
+    private static final String TIMESTAMP_PREFIX = "pak_timestamp-";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String APK_ASSETS_PREFIX = "assets/";
+    private static final int MAX_EXTRACTION_THREADS = 4;
 
     private static String[] sMandatoryPaks = null;
 
@@ -44,23 +69,36 @@ public class ResourceExtractor {
     // change this behavior.
     private static boolean sExtractImplicitLocalePak = true;
 
+    // Assets that are only extracted when first requested through getResourceFile().
+    private static HashSet<String> sOnDemandResources = new HashSet<String>();
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
     private class ExtractTask extends AsyncTask<Void, Void, Void> {
-        private static final int BUFFER_SIZE = 16 * 1024;
 
         public ExtractTask() {
         }
 
         @Override
         protected Void doInBackground(Void... unused) {
+            extract();
+            return null;
+        }
+
+        private void extract() {
+            final long startTime = SystemClock.elapsedRealtime();
             final File outputDir = getOutputDir();
             if (!outputDir.exists() && !outputDir.mkdirs()) {
                 Log.e(LOGTAG, "Unable to create pak resources directory!");
-                return null;
+                return;
             }
 
             String timestampFile = checkPakTimestamp(outputDir);
             if (timestampFile != null) {
-                deleteFiles();
+                // The APK changed. Only the stale timestamps are dropped here, the content
+                // manifest decides below which resources actually need to be rewritten and
+                // outputs the new APK no longer asks for are removed once extraction is done.
+                deleteTimestampFiles(outputDir);
             }
 
             SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(mContext);
@@ -70,6 +108,7 @@ public class ResourceExtractor {
             String currentLanguage = currentLocale.split("-", 2)[0];
 
             if (prefs.getString(LAST_LANGUAGE, "").equals(currentLanguage)
+                    && timestampFile == null
                     &&  filenames.size() >= sMandatoryPaks.length) {
                 boolean filesPresent = true;
                 for (String file : filenames) {
@@ -78,10 +117,13 @@ public class ResourceExtractor {
                         break;
                     }
                 }
-                if (filesPresent) return null;
+                if (filesPresent) return;
             } else {
                 prefs.edit().putString(LAST_LANGUAGE, currentLanguage).apply();
             }
+            // Rebuilt from what this pass installs, so paks of another language or APK version
+            // are not kept alive by the previous list.
+            filenames = new HashSet<String>();
 
             StringBuilder p = new StringBuilder();
             for (String mandatoryPak : sMandatoryPaks) {
@@ -101,60 +143,61 @@ public class ResourceExtractor {
             Pattern paksToInstall = Pattern.compile(p.toString());
 
             AssetManager manager = mContext.getResources().getAssets();
+            Map<String, ManifestEntry> manifest = readManifest(outputDir);
+            Map<String, ManifestEntry> apkEntries = new HashMap<String, ManifestEntry>();
+            ExecutorService executor = null;
+            int extractedCount = 0;
             try {
                 // Loop through every asset file that we have in the APK, and look for the
                 // ones that we need to extract by trying to match the Patterns that we
                 // created above.
-                byte[] buffer = null;
                 String[] files = manager.list("");
+                readApkEntries(apkEntries);
+                synchronized (mManifestLock) {
+                    mManifest = manifest;
+                    mApkEntries = apkEntries;
+                }
+                List<Callable<ManifestEntry>> jobs = new ArrayList<Callable<ManifestEntry>>();
                 for (String file : files) {
-                    if (!paksToInstall.matcher(file).matches() && !file.equals(ICU_DATA_FILENAME)) {
+                    boolean onDemand = sOnDemandResources.contains(file);
+                    if (!paksToInstall.matcher(file).matches() && !file.equals(ICU_DATA_FILENAME)
+                            && !onDemand) {
                         continue;
                     }
-                    boolean isICUData = file.equals(ICU_DATA_FILENAME);
-                    File output = new File(isICUData ? getAppDataDir() : outputDir, file);
-                    if (output.exists()) {
+                    final boolean isICUData = file.equals(ICU_DATA_FILENAME);
+                    final File output = new File(isICUData ? getAppDataDir() : outputDir, file);
+                    ManifestEntry expected = apkEntries.get(file);
+                    if (isUpToDate(output, expected, manifest.get(file), timestampFile == null)) {
+                        if (!isICUData && !onDemand) filenames.add(file);
                         continue;
                     }
-
-                    InputStream is = null;
-                    OutputStream os = null;
-                    try {
-                        is = manager.open(file);
-                        os = new FileOutputStream(output);
-                        Log.i(LOGTAG, "Extracting resource " + file);
-                        if (buffer == null) {
-                            buffer = new byte[BUFFER_SIZE];
-                        }
-
-                        int count = 0;
-                        while ((count = is.read(buffer, 0, BUFFER_SIZE)) != -1) {
-                            os.write(buffer, 0, count);
+                    if (onDemand) {
+                        // Stale, will be produced again when first requested.
+                        if (output.exists() && !output.delete()) {
+                            throw new IOException("Unable to remove stale resource " + file);
                         }
-                        os.flush();
+                        continue;
+                    }
 
-                        // Ensure something reasonable was written.
-                        if (output.length() == 0) {
-                            throw new IOException(file + " extracted with 0 length!");
+                    final AssetManager assets = manager;
+                    final String name = file;
+                    final long expectedSize = expected != null ? expected.size : -1;
+                    final long expectedCrc = expected != null ? expected.crc : -1;
+                    Callable<ManifestEntry> job = new Callable<ManifestEntry>() {
+                        @Override
+                        public ManifestEntry call() throws IOException {
+                            extractAsset(assets, name, output, expectedSize, isICUData);
+                            return new ManifestEntry(name, output.length(), expectedCrc);
                         }
+                    };
+                    jobs.add(job);
+                }
 
-                        if (!isICUData) {
-                            filenames.add(file);
-                        } else {
-                            // icudata needs to be accessed by a renderer process.
-                            output.setReadable(true, false);
-                        }
-                    } finally {
-                        try {
-                            if (is != null) {
-                                is.close();
-                            }
-                        } finally {
-                            if (os != null) {
-                                os.close();
-                            }
-                        }
-                    }
+                if (!jobs.isEmpty()) {
+                    executor = Executors.newFixedThreadPool(Math.min(MAX_EXTRACTION_THREADS,
+                            Math.max(1, Runtime.getRuntime().availableProcessors())));
+                    extractedCount = collectResults(submitAll(executor, jobs), manifest,
+                            filenames);
                 }
             } catch (IOException e) {
                 // TODO(benm): See crbug/152413.
@@ -163,7 +206,16 @@ public class ResourceExtractor {
                 // this happens with regularity.
                 Log.w(LOGTAG, "Exception unpacking required pak resources: " + e.getMessage());
                 deleteFiles();
-                return null;
+                return;
+            } finally {
+                if (executor != null) executor.shutdownNow();
+            }
+
+            boolean manifestChanged = deleteStaleOutputs(outputDir, filenames, manifest);
+            if (extractedCount > 0 || manifestChanged) {
+                synchronized (mManifestLock) {
+                    writeManifest(outputDir, manifest);
+                }
             }
 
             // Finished, write out a timestamp file if we need to.
@@ -180,7 +232,94 @@ public class ResourceExtractor {
             // TODO(yusufo): Figure out why remove is required here.
             prefs.edit().remove(PAK_FILENAMES).apply();
             prefs.edit().putStringSet(PAK_FILENAMES, filenames).apply();
-            return null;
+            Log.i(LOGTAG, "Extracted " + extractedCount + " resources in "
+                    + (SystemClock.elapsedRealtime() - startTime) + "ms");
+            return;
+        }
+
+        /**
+         * Removes the outputs, and their manifest entries, of resources this pass did not
+         * install, e.g. paks of a previous language or of a previous APK version.
+         * @return whether the manifest changed.
+         */
+        private boolean deleteStaleOutputs(File outputDir, HashSet<String> installed,
+                Map<String, ManifestEntry> manifest) {
+            boolean manifestChanged = false;
+            synchronized (mManifestLock) {
+                for (Iterator<String> it = manifest.keySet().iterator(); it.hasNext();) {
+                    String name = it.next();
+                    if (!isKept(name, installed)) {
+                        it.remove();
+                        manifestChanged = true;
+                    }
+                }
+            }
+            File[] outputs = outputDir.listFiles();
+            if (outputs == null) return manifestChanged;
+            for (File output : outputs) {
+                String name = output.getName();
+                if (isKept(name, installed) || name.equals(MANIFEST_FILENAME)
+                        || name.startsWith(TIMESTAMP_PREFIX)) {
+                    continue;
+                }
+                Log.i(LOGTAG, "Removing stale resource " + name);
+                if (!output.delete()) {
+                    Log.w(LOGTAG, "Unable to remove stale resource " + name);
+                }
+            }
+            return manifestChanged;
+        }
+
+        private boolean isKept(String name, HashSet<String> installed) {
+            return installed.contains(name) || name.equals(ICU_DATA_FILENAME)
+                    || sOnDemandResources.contains(name);
+        }
+
+        private List<Future<ManifestEntry>> submitAll(ExecutorService executor,
+                List<Callable<ManifestEntry>> jobs) {
+            List<Future<ManifestEntry>> pending = new ArrayList<Future<ManifestEntry>>();
+            for (Callable<ManifestEntry> job : jobs) {
+                pending.add(executor.submit(job));
+            }
+            return pending;
+        }
+
+        private int collectResults(List<Future<ManifestEntry>> pending,
+                Map<String, ManifestEntry> manifest, HashSet<String> filenames)
+                throws IOException {
+            for (Future<ManifestEntry> future : pending) {
+                ManifestEntry entry = getExtractionResult(future);
+                synchronized (mManifestLock) {
+                    manifest.put(entry.name, entry);
+                }
+                if (!entry.name.equals(ICU_DATA_FILENAME)) filenames.add(entry.name);
+            }
+            return pending.size();
+        }
+
+        private ManifestEntry getExtractionResult(Future<ManifestEntry> future)
+                throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while extracting resources");
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException(String.valueOf(e.getCause()));
+            }
+        }
+
+        private boolean isUpToDate(File output, ManifestEntry expected, ManifestEntry extracted,
+                boolean sameApk) {
+            if (!output.exists()) return false;
+            if (expected == null || expected.size < 0 || expected.crc < 0) {
+                // Nothing to compare against, trust the APK timestamp.
+                return sameApk;
+            }
+            return extracted != null
+                    && extracted.size == expected.size
+                    && extracted.crc == expected.crc
+                    && output.length() == expected.size;
         }
 
         // Looks for a timestamp file on disk that indicates the version of the APK that
@@ -191,7 +330,7 @@ public class ResourceExtractor {
         // android.content.Intent#ACTION_PACKAGE_CHANGED as that causes process churn
         // on (re)installation of *all* APK files.
         private String checkPakTimestamp(File outputDir) {
-            final String timestampPrefix = "pak_timestamp-";
+            final String timestampPrefix = TIMESTAMP_PREFIX;
             PackageManager pm = mContext.getPackageManager();
             PackageInfo pi = null;
 
@@ -229,8 +368,31 @@ public class ResourceExtractor {
         }
     }
 
+    /**
+     * Size and CRC of an extracted resource, as recorded in the APK it was extracted from.
+     */
+    private static class ManifestEntry {
+        final String name;
+        final long size;
+        final long crc;
+
+        ManifestEntry(String name, long size, long crc) {
+            this.name = name;
+            this.size = size;
+            this.crc = crc;
+        }
+    }
+
     private final Context mContext;
     private ExtractTask mExtractTask;
+    private final Map<String, Long> mExtractionLatencies = new ConcurrentHashMap<String, Long>();
+    private final ConcurrentHashMap<String, FutureTask<File>> mOnDemandExtractions =
+            new ConcurrentHashMap<String, FutureTask<File>>();
+
+    private final Object mManifestLock = new Object();
+    // Guarded by mManifestLock.
+    private Map<String, ManifestEntry> mManifest;
+    private Map<String, ManifestEntry> mApkEntries;
 
     private static ResourceExtractor sInstance;
 
@@ -288,10 +450,74 @@ public class ResourceExtractor {
         setMandatoryPaksToExtract(pakFileAssets.toArray(new String[pakFileAssets.size()]));
     }
 
+    /**
+     * Specifies assets that are never extracted up front, only when first requested through
+     * {@link #getResourceFile(String)}.
+     */
+    public static void setOnDemandResources(String... resources) {
+        assert (sInstance == null || sInstance.mExtractTask == null)
+                : "Must be called before startExtractingResources is called";
+        sOnDemandResources = new HashSet<String>(Arrays.asList(resources));
+    }
+
     private ResourceExtractor(Context context) {
         mContext = context.getApplicationContext();
     }
 
+    /**
+     * Returns the extracted file for an asset, extracting it first if it was registered with
+     * {@link #setOnDemandResources(String...)} and has not been produced yet. Blocks until the
+     * up front extraction is complete.
+     */
+    public File getResourceFile(final String name) throws IOException {
+        waitForCompletion();
+        final boolean isICUData = name.equals(ICU_DATA_FILENAME);
+        final File output = new File(isICUData ? getAppDataDir() : getOutputDir(), name);
+        if (!sOnDemandResources.contains(name) || output.exists()) return output;
+
+        FutureTask<File> task = mOnDemandExtractions.get(name);
+        if (task == null) {
+            FutureTask<File> newTask = new FutureTask<File>(new Callable<File>() {
+                @Override
+                public File call() throws IOException {
+                    ManifestEntry expected = getApkEntry(name);
+                    extractAsset(mContext.getResources().getAssets(), name, output,
+                            expected != null ? expected.size : -1, isICUData);
+                    synchronized (mManifestLock) {
+                        if (mManifest == null) mManifest = readManifest(getOutputDir());
+                        mManifest.put(name, new ManifestEntry(name, output.length(),
+                                expected != null ? expected.crc : -1));
+                        writeManifest(getOutputDir(), mManifest);
+                    }
+                    return output;
+                }
+            });
+            task = mOnDemandExtractions.putIfAbsent(name, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+            }
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while extracting " + name);
+        } catch (ExecutionException e) {
+            // Allow a later request to retry.
+            mOnDemandExtractions.remove(name, task);
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(String.valueOf(e.getCause()));
+        }
+    }
+
+    /**
+     * Returns the time in milliseconds each resource took to extract during this run, to find
+     * out which resources are on the critical path.
+     */
+    public Map<String, Long> getExtractionLatencies() {
+        return new HashMap<String, Long>(mExtractionLatencies);
+    }
+
     public void waitForCompletion() {
         if (shouldSkipPakExtraction()) {
             return;
@@ -329,6 +555,127 @@ public class ResourceExtractor {
         mExtractTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
+    /**
+     * Copies a single asset to |output| through a temporary file that is renamed into place
+     * once complete, so a partially written resource is never visible. Uncompressed assets
+     * are transferred channel to channel straight from the APK.
+     */
+    private void extractAsset(AssetManager manager, String file, File output,
+            long expectedSize, boolean isICUData) throws IOException {
+        Log.i(LOGTAG, "Extracting resource " + file);
+        long startTime = SystemClock.elapsedRealtime();
+        File tmp = new File(output.getPath() + TEMP_SUFFIX);
+        FileOutputStream os = new FileOutputStream(tmp);
+        try {
+            if (!transferUncompressedAsset(manager, file, os.getChannel())) {
+                InputStream is = manager.open(file);
+                try {
+                    byte[] buffer = new byte[BUFFER_SIZE];
+                    int count = 0;
+                    while ((count = is.read(buffer, 0, BUFFER_SIZE)) != -1) {
+                        os.write(buffer, 0, count);
+                    }
+                } finally {
+                    is.close();
+                }
+            }
+            os.flush();
+        } finally {
+            os.close();
+        }
+
+        // Ensure something reasonable was written.
+        long length = tmp.length();
+        if (length == 0 || (expectedSize >= 0 && length != expectedSize)) {
+            tmp.delete();
+            throw new IOException(file + " extracted with unexpected length " + length);
+        }
+        if (isICUData) {
+            // icudata needs to be accessed by a renderer process.
+            tmp.setReadable(true, false);
+        }
+        if (!tmp.renameTo(output)) {
+            tmp.delete();
+            throw new IOException("Unable to publish extracted resource " + file);
+        }
+        long latency = SystemClock.elapsedRealtime() - startTime;
+        mExtractionLatencies.put(file, latency);
+        Log.i(LOGTAG, "Extracted resource " + file + " in " + latency + "ms");
+    }
+
+    /**
+     * Returns false if the asset is compressed in the APK and has to be streamed instead.
+     */
+    private boolean transferUncompressedAsset(AssetManager manager, String file,
+            FileChannel out) throws IOException {
+        AssetFileDescriptor afd;
+        try {
+            afd = manager.openFd(file);
+        } catch (FileNotFoundException e) {
+            // Thrown for compressed assets.
+            return false;
+        }
+        try {
+            FileChannel in = new FileInputStream(afd.getFileDescriptor()).getChannel();
+            long position = afd.getStartOffset();
+            long remaining = afd.getLength();
+            while (remaining > 0) {
+                long transferred = in.transferTo(position, remaining, out);
+                if (transferred <= 0) {
+                    throw new IOException("Short transfer extracting " + file);
+                }
+                position += transferred;
+                remaining -= transferred;
+            }
+        } finally {
+            afd.close();
+        }
+        return true;
+    }
+
+    /**
+     * Reads size and CRC of every asset from the APK central directory. This does not
+     * touch the asset contents, so it is cheap compared with extracting.
+     */
+    private void readApkEntries(Map<String, ManifestEntry> entries) {
+        ZipFile apk = null;
+        try {
+            apk = new ZipFile(mContext.getApplicationInfo().sourceDir);
+            Enumeration<? extends ZipEntry> zipEntries = apk.entries();
+            while (zipEntries.hasMoreElements()) {
+                ZipEntry entry = zipEntries.nextElement();
+                String name = entry.getName();
+                if (!name.startsWith(APK_ASSETS_PREFIX) || name.indexOf('/',
+                        APK_ASSETS_PREFIX.length()) != -1) {
+                    continue;
+                }
+                name = name.substring(APK_ASSETS_PREFIX.length());
+                entries.put(name, new ManifestEntry(name, entry.getSize(), entry.getCrc()));
+            }
+        } catch (IOException e) {
+            // Fall back to existence checks only.
+            Log.w(LOGTAG, "Unable to read the APK asset index: " + e.getMessage());
+        } finally {
+            if (apk != null) {
+                try {
+                    apk.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+
+    private ManifestEntry getApkEntry(String name) {
+        synchronized (mManifestLock) {
+            if (mApkEntries == null) {
+                mApkEntries = new HashMap<String, ManifestEntry>();
+                readApkEntries(mApkEntries);
+            }
+            return mApkEntries.get(name);
+        }
+    }
+
     private File getAppDataDir() {
         return new File(PathUtils.getDataDirectory(mContext));
     }
@@ -337,6 +684,82 @@ public class ResourceExtractor {
         return new File(getAppDataDir(), "paks");
     }
 
+    /**
+     * Reads the content manifest written by the last extraction. Each line holds the name, size
+     * and CRC of one resource. A missing or corrupt manifest yields an empty map, which forces
+     * every resource to be extracted again.
+     */
+    private static Map<String, ManifestEntry> readManifest(File outputDir) {
+        Map<String, ManifestEntry> manifest = new HashMap<String, ManifestEntry>();
+        File file = new File(outputDir, MANIFEST_FILENAME);
+        if (!file.exists()) return manifest;
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                if (fields.length != 3) continue;
+                manifest.put(fields[0], new ManifestEntry(fields[0], Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2])));
+            }
+        } catch (IOException e) {
+            manifest.clear();
+        } catch (NumberFormatException e) {
+            manifest.clear();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+        return manifest;
+    }
+
+    /**
+     * Atomically replaces the content manifest.
+     */
+    private static void writeManifest(File outputDir, Map<String, ManifestEntry> manifest) {
+        File file = new File(outputDir, MANIFEST_FILENAME);
+        File tmp = new File(outputDir, MANIFEST_FILENAME + TEMP_SUFFIX);
+        try {
+            FileWriter writer = new FileWriter(tmp);
+            try {
+                for (ManifestEntry entry : manifest.values()) {
+                    writer.write(entry.name + " " + entry.size + " " + entry.crc + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException e) {
+            // Worst case the unchanged resources are extracted again next start up.
+            Log.w(LOGTAG, "Failed to write resource manifest: " + e.getMessage());
+            tmp.delete();
+            file.delete();
+        }
+    }
+
+    private static void deleteTimestampFiles(File outputDir) {
+        File[] timestamps = outputDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(TIMESTAMP_PREFIX);
+            }
+        });
+        if (timestamps == null) return;
+        for (File timestamp : timestamps) {
+            if (!timestamp.delete()) {
+                Log.e(LOGTAG, "Unable to remove stale timestamp " + timestamp.getName());
+            }
+        }
+    }
+
     /**
      * Pak files (UI strings and other resources) should be updated along with
      * Chrome. A version mismatch can lead to a rather broken user experience.
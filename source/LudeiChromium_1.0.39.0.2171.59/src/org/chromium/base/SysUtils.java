@@ -35,7 +35,7 @@ public class SysUtils {
      * @return Amount of physical memory in kilobytes, or 0 if there was
      *         an error trying to access the information.
      */
-    private static int amountOfPhysicalMemoryKB() {
+    public static int amountOfPhysicalMemoryKB() {
         // Extract total memory RAM size by parsing /proc/meminfo, note that
         // this is exactly what the implementation of sysconf(_SC_PHYS_PAGES)
         // does. However, it can't be called because this method must be
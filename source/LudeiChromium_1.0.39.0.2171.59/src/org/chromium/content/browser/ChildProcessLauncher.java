@@ -4,15 +4,23 @@
 
 package org.chromium.content.browser;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ServiceInfo;
 import android.graphics.SurfaceTexture;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
 import android.view.Surface;
 
 import org.chromium.base.CalledByNative;
+import org.chromium.base.CommandLine;
 import org.chromium.base.JNINamespace;
+import org.chromium.base.MemoryPressureListener;
+import org.chromium.base.SysUtils;
 import org.chromium.base.ThreadUtils;
 import org.chromium.base.TraceEvent;
 import org.chromium.base.VisibleForTesting;
@@ -25,7 +33,9 @@ import org.chromium.content.common.IChildProcessCallback;
 import org.chromium.content.common.SurfaceWrapper;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -46,12 +56,19 @@ public class ChildProcessLauncher {
 
     // The upper limit on the number of simultaneous sandboxed and privileged child service process
     // instances supported. Each limit must not exceed total number of SandboxedProcessServiceX
-    // classes and PrivilegedProcessServiceX classes declared in this package and defined as
-    // services in the embedding application's manifest file.
+    // classes and PrivilegedProcessServiceX classes declared in this package. The sandboxed pool
+    // is further limited to the services defined in the embedding application's manifest file
+    // and to what the device can afford, see computeSandboxedServiceCount().
     // (See {@link ChildProcessService} for more details on defining the services.)
-    /* package */ static final int MAX_REGISTERED_SANDBOXED_SERVICES = 2;
+    /* package */ static final int MAX_REGISTERED_SANDBOXED_SERVICES = 20;
     /* package */ static final int MAX_REGISTERED_PRIVILEGED_SERVICES = 3;
 
+    // Bounds of the sandboxed pool size picked from the device memory and core count.
+    private static final int MIN_SANDBOXED_SERVICES = 2;
+    private static final int MAX_POLICY_SANDBOXED_SERVICES = 6;
+    // Physical memory allowed per sandboxed process when sizing the pool.
+    private static final int PHYSICAL_MEMORY_MB_PER_SANDBOXED_SERVICE = 512;
+
     private static class ChildConnectionAllocator {
         // Connections to services. Indices of the array correspond to the service numbers.
         private final ChildProcessConnection[] mChildProcessConnections;
@@ -69,20 +86,35 @@ public class ChildProcessLauncher {
 
         private Class<? extends ChildProcessService> mChildClass;
         private final boolean mInSandbox;
+        // The number of services in use, decided on the first allocation for sandboxed services.
+        // SHOULD BE ACCESSED WITH mConnectionLock.
+        private int mNumChildServices;
 
         public ChildConnectionAllocator(boolean inSandbox) {
             int numChildServices = inSandbox ?
                     MAX_REGISTERED_SANDBOXED_SERVICES : MAX_REGISTERED_PRIVILEGED_SERVICES;
             mChildProcessConnections = new ChildProcessConnectionImpl[numChildServices];
             mFreeConnectionIndices = new ArrayList<Integer>(numChildServices);
-            for (int i = 0; i < numChildServices; i++) {
-                mFreeConnectionIndices.add(i);
-            }
+            if (!inSandbox) initializeSlots(numChildServices);
             setServiceClass(inSandbox ?
                     SandboxedProcessService.class : PrivilegedProcessService.class);
             mInSandbox = inSandbox;
         }
 
+        private void initializeSlots(int numChildServices) {
+            mNumChildServices = numChildServices;
+            for (int i = 0; i < numChildServices; i++) {
+                mFreeConnectionIndices.add(i);
+            }
+        }
+
+        private void ensureSlotsInitialized(Context context) {
+            if (mNumChildServices == 0) {
+                initializeSlots(computeSandboxedServiceCount(context, mChildClass));
+                Log.i(TAG, "Sandboxed services in use: " + mNumChildServices);
+            }
+        }
+
         public void setServiceClass(Class<? extends ChildProcessService> childClass) {
             mChildClass = childClass;
         }
@@ -91,6 +123,7 @@ public class ChildProcessLauncher {
                 Context context, ChildProcessConnection.DeathCallback deathCallback,
                 ChromiumLinkerParams chromiumLinkerParams) {
             synchronized (mConnectionLock) {
+                ensureSlotsInitialized(context);
                 if (mFreeConnectionIndices.isEmpty()) {
                     Log.e(TAG, "Ran out of services to allocate.");
                     assert false;
@@ -125,11 +158,75 @@ public class ChildProcessLauncher {
             }
         }
 
+        /** @return true if a connection can be allocated */
+        public boolean isFreeConnectionAvailable(Context context) {
+            synchronized (mConnectionLock) {
+                ensureSlotsInitialized(context);
+                return !mFreeConnectionIndices.isEmpty();
+            }
+        }
+
+        /** @return the number of services the allocator hands out, 0 before the first use */
+        public int getNumChildServices() {
+            synchronized (mConnectionLock) {
+                return mNumChildServices;
+            }
+        }
+
         /** @return the count of connections managed by the allocator */
         @VisibleForTesting
         int allocatedConnectionsCountForTesting() {
-            return mChildProcessConnections.length - mFreeConnectionIndices.size();
+            return mNumChildServices - mFreeConnectionIndices.size();
+        }
+    }
+
+    /**
+     * Picks the number of sandboxed services to use: one per
+     * PHYSICAL_MEMORY_MB_PER_SANDBOXED_SERVICE of memory and at most one more than the cores,
+     * within [MIN_SANDBOXED_SERVICES, MAX_POLICY_SANDBOXED_SERVICES], and never more than the
+     * services the application declares.
+     */
+    private static int computeSandboxedServiceCount(
+            Context context, Class<? extends ChildProcessService> serviceClass) {
+        int limit = MIN_SANDBOXED_SERVICES;
+        if (CommandLine.isInitialized() && !SysUtils.isLowEndDevice()) {
+            int memoryMB = SysUtils.amountOfPhysicalMemoryKB() / 1024;
+            limit = Math.min(memoryMB / PHYSICAL_MEMORY_MB_PER_SANDBOXED_SERVICE,
+                    Runtime.getRuntime().availableProcessors() + 1);
+            limit = Math.max(MIN_SANDBOXED_SERVICES,
+                    Math.min(limit, MAX_POLICY_SANDBOXED_SERVICES));
         }
+        int declared = countDeclaredServices(context, serviceClass);
+        // If the manifest could not be read, stay with what every embedder has to declare.
+        if (declared == 0) return MIN_SANDBOXED_SERVICES;
+        return Math.min(limit, declared);
+    }
+
+    /**
+     * @return the number of consecutive services named after <code>serviceClass</code>,
+     * starting at 0, declared in the application's manifest.
+     */
+    private static int countDeclaredServices(
+            Context context, Class<? extends ChildProcessService> serviceClass) {
+        PackageInfo packageInfo;
+        try {
+            packageInfo = context.getPackageManager().getPackageInfo(
+                    context.getPackageName(), PackageManager.GET_SERVICES);
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e(TAG, "Unable to read the declared services", e);
+            return 0;
+        }
+        if (packageInfo.services == null) return 0;
+        Set<String> names = new HashSet<String>();
+        for (ServiceInfo service : packageInfo.services) {
+            names.add(service.name);
+        }
+        int count = 0;
+        while (count < MAX_REGISTERED_SANDBOXED_SERVICES
+                && names.contains(serviceClass.getName() + count)) {
+            count++;
+        }
+        return count;
     }
 
     // Service class for child process. As the default value it uses SandboxedProcessService0 and
@@ -164,6 +261,10 @@ public class ChildProcessLauncher {
             new ChildProcessConnection.DeathCallback() {
                 @Override
                 public void onChildProcessDied(ChildProcessConnection connection) {
+                    synchronized (ChildProcessLauncher.class) {
+                        // A spare that died must not be handed out.
+                        sSpareSandboxedConnections.remove(connection);
+                    }
                     if (connection.getPid() != 0) {
                         stop(connection.getPid());
                     } else {
@@ -222,8 +323,31 @@ public class ChildProcessLauncher {
     private static Map<Integer, ChildProcessConnection> sServiceMap =
             new ConcurrentHashMap<Integer, ChildProcessConnection>();
 
-    // A pre-allocated and pre-bound connection ready for connection setup, or null.
-    private static ChildProcessConnection sSpareSandboxedConnection = null;
+    // Pre-allocated and pre-bound connections ready for connection setup, oldest first.
+    private static final ArrayList<ChildProcessConnection> sSpareSandboxedConnections =
+            new ArrayList<ChildProcessConnection>();
+
+    // Launch statistics, guarded by ChildProcessLauncher.class.
+    private static int sSpareHitCount;
+    private static int sSpareMissCount;
+    private static long sLastLaunchLatencyMs;
+    private static long sMaxLaunchLatencyMs;
+
+    static {
+        // Spares are idle processes, they are the first thing to give back under pressure.
+        MemoryPressureListener.addObserver(new MemoryPressureListener.Observer() {
+            @Override
+            public void onMemoryPressure(int level) {
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                    trimSpareConnections(0);
+                } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+                    trimSpareConnections(1);
+                }
+            }
+        });
+    }
 
     // Manages oom bindings used to bind chind services.
     private static BindingManager sBindingManager = BindingManagerImpl.createBindingManager();
@@ -300,12 +424,102 @@ public class ChildProcessLauncher {
      * @param context the application context used for the connection.
      */
     public static void warmUp(Context context) {
+        warmUp(context, 1);
+    }
+
+    /**
+     * Same as {@link #warmUp(Context)}, but keeps up to <code>spareCount</code> spare
+     * connections. Spares are only created while sandboxed service slots are free, so they never
+     * prevent a child process from starting. Must not be called on the UI thread.
+     * @param context the application context used for the connections.
+     * @param spareCount the number of spare connections to keep.
+     */
+    public static void warmUp(Context context, int spareCount) {
         synchronized (ChildProcessLauncher.class) {
             assert !ThreadUtils.runningOnUiThread();
-            if (sSpareSandboxedConnection == null) {
-                sSpareSandboxedConnection = allocateBoundConnection(context, null, true);
+            while (sSpareSandboxedConnections.size() < spareCount
+                    && sSandboxedChildConnectionAllocator.isFreeConnectionAvailable(context)) {
+                ChildProcessConnection connection =
+                        allocateBoundConnection(context, null, true);
+                if (connection == null) break;
+                sSpareSandboxedConnections.add(connection);
+            }
+        }
+    }
+
+    /**
+     * @return the number of spare connections waiting to be used.
+     */
+    public static int getSpareConnectionCount() {
+        synchronized (ChildProcessLauncher.class) {
+            return sSpareSandboxedConnections.size();
+        }
+    }
+
+    /**
+     * Releases spare connections until at most <code>keepCount</code> remain.
+     */
+    public static void trimSpareConnections(int keepCount) {
+        ArrayList<ChildProcessConnection> released = new ArrayList<ChildProcessConnection>();
+        synchronized (ChildProcessLauncher.class) {
+            while (sSpareSandboxedConnections.size() > keepCount) {
+                released.add(sSpareSandboxedConnections.remove(0));
             }
         }
+        for (ChildProcessConnection connection : released) {
+            Log.d(TAG, "Releasing spare connection: slot=" + connection.getServiceNumber());
+            connection.stop();
+            freeConnection(connection);
+        }
+    }
+
+    /**
+     * @return the number of sandboxed services in use, or 0 if none was allocated yet.
+     */
+    public static int getSandboxedServiceCount() {
+        return sSandboxedChildConnectionAllocator.getNumChildServices();
+    }
+
+    /**
+     * @return the number of sandboxed launches that used a spare connection.
+     */
+    public static int getSpareHitCount() {
+        synchronized (ChildProcessLauncher.class) {
+            return sSpareHitCount;
+        }
+    }
+
+    /**
+     * @return the number of sandboxed launches that had to bind a new connection.
+     */
+    public static int getSpareMissCount() {
+        synchronized (ChildProcessLauncher.class) {
+            return sSpareMissCount;
+        }
+    }
+
+    /**
+     * @return the time in milliseconds between the last launch request and its process being
+     * connected.
+     */
+    public static long getLastLaunchLatencyMs() {
+        synchronized (ChildProcessLauncher.class) {
+            return sLastLaunchLatencyMs;
+        }
+    }
+
+    /**
+     * @return the highest value of {@link #getLastLaunchLatencyMs()} so far.
+     */
+    public static long getMaxLaunchLatencyMs() {
+        synchronized (ChildProcessLauncher.class) {
+            return sMaxLaunchLatencyMs;
+        }
+    }
+
+    private static synchronized void recordLaunchLatency(long latencyMs) {
+        sLastLaunchLatencyMs = latencyMs;
+        if (latencyMs > sMaxLaunchLatencyMs) sMaxLaunchLatencyMs = latencyMs;
     }
 
     private static String getSwitchValue(final String[] commandLine, String switchKey) {
@@ -346,6 +560,7 @@ public class ChildProcessLauncher {
             boolean[] fileAutoClose,
             long clientContext) {
         TraceEvent.begin();
+        long startTimeMs = SystemClock.elapsedRealtime();
         assert fileIds.length == fileFds.length && fileFds.length == fileAutoClose.length;
         FileDescriptorInfo[] filesToBeMapped = new FileDescriptorInfo[fileFds.length];
         for (int i = 0; i < fileFds.length; i++) {
@@ -367,9 +582,15 @@ public class ChildProcessLauncher {
 
         ChildProcessConnection allocatedConnection = null;
         synchronized (ChildProcessLauncher.class) {
+            if (inSandbox && !sSpareSandboxedConnections.isEmpty()) {
+                allocatedConnection = sSpareSandboxedConnections.remove(0);
+            }
             if (inSandbox) {
-                allocatedConnection = sSpareSandboxedConnection;
-                sSpareSandboxedConnection = null;
+                if (allocatedConnection != null) {
+                    sSpareHitCount++;
+                } else {
+                    sSpareMissCount++;
+                }
             }
         }
         if (allocatedConnection == null) {
@@ -386,7 +607,7 @@ public class ChildProcessLauncher {
         Log.d(TAG, "Setting up connection to process: slot=" +
                 allocatedConnection.getServiceNumber());
         triggerConnectionSetup(allocatedConnection, commandLine, childProcessId, filesToBeMapped,
-                callbackType, clientContext);
+                callbackType, clientContext, startTimeMs);
         TraceEvent.end();
     }
 
@@ -398,11 +619,26 @@ public class ChildProcessLauncher {
             FileDescriptorInfo[] filesToBeMapped,
             int callbackType,
             final long clientContext) {
+        triggerConnectionSetup(connection, commandLine, childProcessId, filesToBeMapped,
+                callbackType, clientContext, 0);
+    }
+
+    private static void triggerConnectionSetup(
+            final ChildProcessConnection connection,
+            String[] commandLine,
+            int childProcessId,
+            FileDescriptorInfo[] filesToBeMapped,
+            int callbackType,
+            final long clientContext,
+            final long startTimeMs) {
         ChildProcessConnection.ConnectionCallback connectionCallback =
                 new ChildProcessConnection.ConnectionCallback() {
                     @Override
                     public void onConnected(int pid) {
                         Log.d(TAG, "on connect callback, pid=" + pid + " context=" + clientContext);
+                        if (pid != NULL_PROCESS_HANDLE && startTimeMs != 0) {
+                            recordLaunchLatency(SystemClock.elapsedRealtime() - startTimeMs);
+                        }
                         if (pid != NULL_PROCESS_HANDLE) {
                             sBindingManager.addNewConnection(pid, connection);
                             sServiceMap.put(pid, connection);
@@ -33,6 +33,9 @@ public class ContentView extends FrameLayout
 
     private static final String TAG = "ContentView";
 
+    private static final int TRACE_ON_SIZE_CHANGED = TraceEvent.registerName(
+            "org.chromium.content.browser.ContentView.onSizeChanged");
+
     protected final ContentViewCore mContentViewCore;
 
     public ContentViewCore getContentViewCore() {
@@ -82,10 +85,10 @@ public class ContentView extends FrameLayout
 
     @Override
     protected void onSizeChanged(int w, int h, int ow, int oh) {
-        TraceEvent.begin();
+        TraceEvent.begin(TRACE_ON_SIZE_CHANGED);
         super.onSizeChanged(w, h, ow, oh);
         mContentViewCore.onSizeChanged(w, h, ow, oh);
-        TraceEvent.end();
+        TraceEvent.end(TRACE_ON_SIZE_CHANGED);
     }
 
     @Override
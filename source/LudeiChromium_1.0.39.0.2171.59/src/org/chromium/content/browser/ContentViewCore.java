@@ -50,9 +50,8 @@ import android.widget.FrameLayout;
 import org.chromium.base.ApiCompatibilityUtils;
 import org.chromium.base.CalledByNative;
 import org.chromium.base.CommandLine;
+import org.chromium.base.CopyOnWriteObserverList;
 import org.chromium.base.JNINamespace;
-import org.chromium.base.ObserverList;
-import org.chromium.base.ObserverList.RewindableIterator;
 import org.chromium.base.TraceEvent;
 import org.chromium.base.VisibleForTesting;
 import org.chromium.content.R;
@@ -102,6 +101,16 @@ public class ContentViewCore
 
     private static final String TAG = "ContentViewCore";
 
+    // Trace event names of the per-event and per-frame paths, interned once.
+    private static final int TRACE_ON_TOUCH_EVENT = TraceEvent.registerName("onTouchEvent");
+    private static final int TRACE_ON_HOVER_EVENT = TraceEvent.registerName("onHoverEvent");
+    private static final int TRACE_UPDATE_FRAME_INFO =
+            TraceEvent.registerName("ContentViewCore:updateFrameInfo");
+    private static final int TRACE_DISPATCH_KEY_EVENT_PRE_IME = TraceEvent.registerName(
+            "org.chromium.content.browser.ContentViewCore.dispatchKeyEventPreIme");
+    private static final int TRACE_UPDATE_IME_ADAPTER = TraceEvent.registerName(
+            "org.chromium.content.browser.ContentViewCore.updateImeAdapter");
+
     // Used to avoid enabling zooming in / out if resulting zooming will
     // produce little visible difference.
     private static final float ZOOM_CONTROLS_EPSILON = 0.007f;
@@ -240,8 +249,7 @@ public class ContentViewCore
     // Native pointer to C++ ContentViewCoreImpl object which will be set by nativeInit().
     private long mNativeContentViewCore = 0;
 
-    private final ObserverList<GestureStateListener> mGestureStateListeners;
-    private final RewindableIterator<GestureStateListener> mGestureStateListenersIterator;
+    private final CopyOnWriteObserverList<GestureStateListener> mGestureStateListeners;
     private ZoomControlsDelegate mZoomControlsDelegate;
 
     private PopupZoomer mPopupZoomer;
@@ -383,8 +391,7 @@ public class ContentViewCore
         mRenderCoordinates.setDeviceScaleFactor(deviceScaleFactor);
         mAccessibilityManager = (AccessibilityManager)
                 getContext().getSystemService(Context.ACCESSIBILITY_SERVICE);
-        mGestureStateListeners = new ObserverList<GestureStateListener>();
-        mGestureStateListenersIterator = mGestureStateListeners.rewindableIterator();
+        mGestureStateListeners = new CopyOnWriteObserverList<GestureStateListener>();
 
         mEditable = Editable.Factory.getInstance().newEditable("");
         Selection.setSelection(mEditable, 0);
@@ -959,7 +966,7 @@ public class ContentViewCore
     }
 
     private boolean onTouchEventImpl(MotionEvent event, boolean isTouchHandleEvent) {
-        TraceEvent.begin("onTouchEvent");
+        TraceEvent.begin(TRACE_ON_TOUCH_EVENT);
         try {
             int eventAction = event.getActionMasked();
 
@@ -1001,7 +1008,7 @@ public class ContentViewCore
             if (offset != null) offset.recycle();
             return consumed;
         } finally {
-            TraceEvent.end("onTouchEvent");
+            TraceEvent.end(TRACE_ON_TOUCH_EVENT);
         }
     }
 
@@ -1030,9 +1037,10 @@ public class ContentViewCore
     private void onFlingStartEventConsumed(int vx, int vy) {
         mTouchScrollInProgress = false;
         mPotentiallyActiveFlingCount++;
-        for (mGestureStateListenersIterator.rewind();
-                    mGestureStateListenersIterator.hasNext();) {
-            mGestureStateListenersIterator.next().onFlingStartGesture(
+        CopyOnWriteObserverList.Snapshot<GestureStateListener> listeners =
+                mGestureStateListeners.snapshot();
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onFlingStartGesture(
                     vx, vy, computeVerticalScrollOffset(), computeVerticalScrollExtent());
         }
     }
@@ -1041,9 +1049,10 @@ public class ContentViewCore
     @CalledByNative
     private void onFlingStartEventHadNoConsumer(int vx, int vy) {
         mTouchScrollInProgress = false;
-        for (mGestureStateListenersIterator.rewind();
-                    mGestureStateListenersIterator.hasNext();) {
-            mGestureStateListenersIterator.next().onUnhandledFlingStartEvent(vx, vy);
+        CopyOnWriteObserverList.Snapshot<GestureStateListener> listeners =
+                mGestureStateListeners.snapshot();
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onUnhandledFlingStartEvent(vx, vy);
         }
     }
 
@@ -1066,9 +1075,10 @@ public class ContentViewCore
     @CalledByNative
     private void onScrollUpdateGestureConsumed() {
         mZoomControlsDelegate.invokeZoomPicker();
-        for (mGestureStateListenersIterator.rewind();
-                mGestureStateListenersIterator.hasNext();) {
-            mGestureStateListenersIterator.next().onScrollUpdateGestureConsumed();
+        CopyOnWriteObserverList.Snapshot<GestureStateListener> listeners =
+                mGestureStateListeners.snapshot();
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onScrollUpdateGestureConsumed();
         }
     }
 
@@ -1095,9 +1105,10 @@ public class ContentViewCore
     @SuppressWarnings("unused")
     @CalledByNative
     private void onSingleTapEventAck(boolean consumed, int x, int y) {
-        for (mGestureStateListenersIterator.rewind();
-                mGestureStateListenersIterator.hasNext();) {
-            mGestureStateListenersIterator.next().onSingleTap(consumed, x, y);
+        CopyOnWriteObserverList.Snapshot<GestureStateListener> listeners =
+                mGestureStateListeners.snapshot();
+        for (int i = 0; i < listeners.size(); i++) {
+            listeners.get(i).onSingleTap(consumed, x, y);
         }
     }
 
@@ -1154,9 +1165,10 @@ public class ContentViewCore
     }
 
     void updateGestureStateListener(int gestureType) {
-        for (mGestureStateListenersIterator.rewind();
-                mGestureStateListenersIterator.hasNext();) {
-            GestureStateListener listener = mGestureStateListenersIterator.next();
+        CopyOnWriteObserverList.Snapshot<GestureStateListener> listeners =
+                mGestureStateListeners.snapshot();
+        for (int i = 0; i < listeners.size(); i++) {
+            GestureStateListener listener = listeners.get(i);
             switch (gestureType) {
                 case GestureEventType.PINCH_BEGIN:
                     listener.onPinchStarted();
@@ -1525,10 +1537,10 @@ public class ContentViewCore
      */
     public boolean dispatchKeyEventPreIme(KeyEvent event) {
         try {
-            TraceEvent.begin();
+            TraceEvent.begin(TRACE_DISPATCH_KEY_EVENT_PRE_IME);
             return mContainerViewInternals.super_dispatchKeyEventPreIme(event);
         } finally {
-            TraceEvent.end();
+            TraceEvent.end(TRACE_DISPATCH_KEY_EVENT_PRE_IME);
         }
     }
 
@@ -1553,7 +1565,7 @@ public class ContentViewCore
      * move and hover exit.
      */
     public boolean onHoverEvent(MotionEvent event) {
-        TraceEvent.begin("onHoverEvent");
+        TraceEvent.begin(TRACE_ON_HOVER_EVENT);
         MotionEvent offset = createOffsetMotionEvent(event);
         try {
             if (mBrowserAccessibilityManager != null) {
@@ -1574,7 +1586,7 @@ public class ContentViewCore
             return true;
         } finally {
             offset.recycle();
-            TraceEvent.end("onHoverEvent");
+            TraceEvent.end(TRACE_ON_HOVER_EVENT);
         }
     }
 
@@ -2075,7 +2087,7 @@ public class ContentViewCore
             float contentWidth, float contentHeight,
             float viewportWidth, float viewportHeight,
             float controlsOffsetYCss, float contentOffsetYCss) {
-        TraceEvent.begin("ContentViewCore:updateFrameInfo");
+        TraceEvent.begin(TRACE_UPDATE_FRAME_INFO);
         // Adjust contentWidth/Height to be always at least as big as
         // the actual viewport (as set by onSizeChanged).
         final float deviceScale = mRenderCoordinates.getDeviceScaleFactor();
@@ -2121,9 +2133,10 @@ public class ContentViewCore
                 contentOffsetYPix);
 
         if (scrollChanged || contentOffsetChanged) {
-            for (mGestureStateListenersIterator.rewind();
-                    mGestureStateListenersIterator.hasNext();) {
-                mGestureStateListenersIterator.next().onScrollOffsetOrExtentChanged(
+            CopyOnWriteObserverList.Snapshot<GestureStateListener> listeners =
+                    mGestureStateListeners.snapshot();
+            for (int i = 0; i < listeners.size(); i++) {
+                listeners.get(i).onScrollOffsetOrExtentChanged(
                         computeVerticalScrollOffset(),
                         computeVerticalScrollExtent());
             }
@@ -2140,7 +2153,7 @@ public class ContentViewCore
         if (mBrowserAccessibilityManager != null) {
             mBrowserAccessibilityManager.notifyFrameInfoInitialized();
         }
-        TraceEvent.end("ContentViewCore:updateFrameInfo");
+        TraceEvent.end(TRACE_UPDATE_FRAME_INFO);
     }
 
     @CalledByNative
@@ -2148,7 +2161,7 @@ public class ContentViewCore
             int textInputFlags, String text, int selectionStart, int selectionEnd,
             int compositionStart, int compositionEnd, boolean showImeIfNeeded,
             boolean isNonImeChange) {
-        TraceEvent.begin();
+        TraceEvent.begin(TRACE_UPDATE_IME_ADAPTER);
         mFocusedNodeEditable = (textInputType != ImeAdapter.getTextInputTypeNone());
         if (!mFocusedNodeEditable) hidePastePopup();
 
@@ -2161,7 +2174,7 @@ public class ContentViewCore
         }
 
         if (mActionMode != null) mActionMode.invalidate();
-        TraceEvent.end();
+        TraceEvent.end(TRACE_UPDATE_IME_ADAPTER);
     }
 
     @SuppressWarnings("unused")
@@ -4,14 +4,19 @@
 
 package org.chromium.content.browser;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.Choreographer;
 
 import org.chromium.base.CalledByNative;
 import org.chromium.base.CollectionUtil;
@@ -52,6 +57,42 @@ class DeviceSensors implements SensorEventListener {
     // Holds a shortened version of the rotation vector for compatibility purposes.
     private float[] mTruncatedRotationVector;
 
+    // Scratch space of the orientation computation, only used on the sensor thread.
+    private final float[] mRotationMatrix = new float[9];
+    private final double[] mRotationAngles = new double[3];
+
+    // Kinds of samples coalesced between flushes.
+    private static final int SAMPLE_ORIENTATION = 0;
+    private static final int SAMPLE_ACCELERATION = 1;
+    private static final int SAMPLE_ACCELERATION_INCLUDING_GRAVITY = 2;
+    private static final int SAMPLE_ROTATION_RATE = 3;
+    private static final int SAMPLE_LIGHT = 4;
+    private static final int SAMPLE_KIND_COUNT = 5;
+    private static final int SAMPLE_SIZE = 3;
+
+    // The native side only keeps the latest reading of each kind in the shared memory the
+    // renderer polls at the requested rate, so samples are coalesced on the sensor thread and
+    // delivered at most once per requested interval, aligned to vsync where possible.
+    // mSamples, mPendingSamples, mFlushScheduled and mLastFlushMs are only accessed on the
+    // sensor thread.
+    private final double[] mSamples = new double[SAMPLE_KIND_COUNT * SAMPLE_SIZE];
+    private int mPendingSamples;
+    private boolean mFlushScheduled;
+    private long mLastFlushMs;
+    // Smallest rate requested by the active event types, in milliseconds. This is the only
+    // signal of what the page consumes: the renderer reads the shared memory without calling
+    // back into Java, so the sampling rate is not adapted beyond the requested one.
+    private volatile int mFlushIntervalMs;
+    // Rate requested by each event type, indexed by event type, guarded by mNativePtrLock.
+    private final int[] mEventTypeRatesMs = new int[3];
+    private FrameFlusher mFrameFlusher;
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flushSamples();
+        }
+    };
+
     // Lazily initialized when registering for notifications.
     private SensorManagerProxy mSensorManagerProxy;
 
@@ -120,6 +161,7 @@ class DeviceSensors implements SensorEventListener {
             if (success) {
                 mNativePtr = nativePtr;
                 setEventTypeActive(eventType, true);
+                setEventTypeRate(eventType, rateInMilliseconds);
             }
             return success;
         }
@@ -179,6 +221,7 @@ class DeviceSensors implements SensorEventListener {
             sensorsToDeactivate.removeAll(sensorsToRemainActive);
             unregisterSensors(sensorsToDeactivate);
             setEventTypeActive(eventType, false);
+            setEventTypeRate(eventType, 0);
             if (mActiveSensors.isEmpty()) {
                 mNativePtr = 0;
             }
@@ -200,17 +243,18 @@ class DeviceSensors implements SensorEventListener {
         switch (type) {
             case Sensor.TYPE_ACCELEROMETER:
                 if (mDeviceMotionIsActive) {
-                    gotAccelerationIncludingGravity(values[0], values[1], values[2]);
+                    addSample(SAMPLE_ACCELERATION_INCLUDING_GRAVITY,
+                            values[0], values[1], values[2]);
                 }
                 break;
             case Sensor.TYPE_LINEAR_ACCELERATION:
                 if (mDeviceMotionIsActive) {
-                    gotAcceleration(values[0], values[1], values[2]);
+                    addSample(SAMPLE_ACCELERATION, values[0], values[1], values[2]);
                 }
                 break;
             case Sensor.TYPE_GYROSCOPE:
                 if (mDeviceMotionIsActive) {
-                    gotRotationRate(values[0], values[1], values[2]);
+                    addSample(SAMPLE_ROTATION_RATE, values[0], values[1], values[2]);
                 }
                 break;
             case Sensor.TYPE_ROTATION_VECTOR:
@@ -232,7 +276,7 @@ class DeviceSensors implements SensorEventListener {
                 break;
             case Sensor.TYPE_LIGHT:
                 if (mDeviceLightIsActive) {
-                    gotLight(values[0]);
+                    addSample(SAMPLE_LIGHT, values[0], 0, 0);
                 }
                 break;
             default:
@@ -325,15 +369,105 @@ class DeviceSensors implements SensorEventListener {
     }
 
     private void getOrientationFromRotationVector(float[] rotationVector) {
-        float[] deviceRotationMatrix = new float[9];
-        SensorManager.getRotationMatrixFromVector(deviceRotationMatrix, rotationVector);
+        SensorManager.getRotationMatrixFromVector(mRotationMatrix, rotationVector);
+        computeDeviceOrientationFromRotationMatrix(mRotationMatrix, mRotationAngles);
+
+        addSample(SAMPLE_ORIENTATION,
+                  Math.toDegrees(mRotationAngles[0]),
+                  Math.toDegrees(mRotationAngles[1]),
+                  Math.toDegrees(mRotationAngles[2]));
+    }
+
+    /**
+     * Records the latest sample of a kind and schedules a flush, on the sensor thread.
+     */
+    private void addSample(int kind, double a, double b, double c) {
+        int offset = kind * SAMPLE_SIZE;
+        mSamples[offset] = a;
+        mSamples[offset + 1] = b;
+        mSamples[offset + 2] = c;
+        mPendingSamples |= 1 << kind;
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (mFlushScheduled) return;
+        Handler handler = mHandler;
+        if (handler == null || Looper.myLooper() != handler.getLooper()) {
+            // Not called on the sensor thread, deliver right away.
+            flushSamples();
+            return;
+        }
+        long delayMs = mLastFlushMs + mFlushIntervalMs - SystemClock.uptimeMillis();
+        if (delayMs < 0) delayMs = 0;
+        mFlushScheduled = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            if (mFrameFlusher == null) mFrameFlusher = new FrameFlusher();
+            mFrameFlusher.post(delayMs);
+        } else {
+            handler.postDelayed(mFlushRunnable, delayMs);
+        }
+    }
+
+    /**
+     * Delivers the samples recorded since the last flush to native, under a single acquisition
+     * of mNativePtrLock.
+     */
+    private void flushSamples() {
+        mFlushScheduled = false;
+        mLastFlushMs = SystemClock.uptimeMillis();
+        int pending = mPendingSamples;
+        mPendingSamples = 0;
+        if (pending == 0) return;
+
+        final double[] samples = mSamples;
+        synchronized (mNativePtrLock) {
+            if (mNativePtr == 0) return;
+            if (mDeviceOrientationIsActive && isPending(pending, SAMPLE_ORIENTATION)) {
+                int offset = SAMPLE_ORIENTATION * SAMPLE_SIZE;
+                gotOrientation(samples[offset], samples[offset + 1], samples[offset + 2]);
+            }
+            if (mDeviceMotionIsActive) {
+                if (isPending(pending, SAMPLE_ACCELERATION_INCLUDING_GRAVITY)) {
+                    int offset = SAMPLE_ACCELERATION_INCLUDING_GRAVITY * SAMPLE_SIZE;
+                    gotAccelerationIncludingGravity(
+                            samples[offset], samples[offset + 1], samples[offset + 2]);
+                }
+                if (isPending(pending, SAMPLE_ACCELERATION)) {
+                    int offset = SAMPLE_ACCELERATION * SAMPLE_SIZE;
+                    gotAcceleration(samples[offset], samples[offset + 1], samples[offset + 2]);
+                }
+                if (isPending(pending, SAMPLE_ROTATION_RATE)) {
+                    int offset = SAMPLE_ROTATION_RATE * SAMPLE_SIZE;
+                    gotRotationRate(samples[offset], samples[offset + 1], samples[offset + 2]);
+                }
+            }
+            if (mDeviceLightIsActive && isPending(pending, SAMPLE_LIGHT)) {
+                gotLight(samples[SAMPLE_LIGHT * SAMPLE_SIZE]);
+            }
+        }
+    }
+
+    private static boolean isPending(int pending, int kind) {
+        return (pending & (1 << kind)) != 0;
+    }
 
-        double[] rotationAngles = new double[3];
-        computeDeviceOrientationFromRotationMatrix(deviceRotationMatrix, rotationAngles);
+    /**
+     * Flushes on the frame callbacks of the sensor thread's Choreographer, so deliveries line
+     * up with vsync.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private class FrameFlusher implements Choreographer.FrameCallback {
+        private final Choreographer mChoreographer = Choreographer.getInstance();
 
-        gotOrientation(Math.toDegrees(rotationAngles[0]),
-                       Math.toDegrees(rotationAngles[1]),
-                       Math.toDegrees(rotationAngles[2]));
+        void post(long delayMs) {
+            mChoreographer.postFrameCallbackDelayed(this, delayMs);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            flushSamples();
+        }
     }
 
     private SensorManagerProxy getSensorManagerProxy() {
@@ -360,6 +494,15 @@ class DeviceSensors implements SensorEventListener {
         mSensorManagerProxy = sensorManagerProxy;
     }
 
+    private void setEventTypeRate(int eventType, int rateInMilliseconds) {
+        mEventTypeRatesMs[eventType] = rateInMilliseconds;
+        int interval = 0;
+        for (int rate : mEventTypeRatesMs) {
+            if (rate > 0 && (interval == 0 || rate < interval)) interval = rate;
+        }
+        mFlushIntervalMs = interval;
+    }
+
     private void setEventTypeActive(int eventType, boolean value) {
         switch (eventType) {
             case DEVICE_ORIENTATION:
@@ -29,6 +29,7 @@ import android.view.animation.Interpolator;
 import android.view.animation.OvershootInterpolator;
 
 import org.chromium.content.R;
+import org.chromium.ui.gfx.BitmapHelper;
 
 /**
  * PopupZoomer is used to show the on-demand link zooming popup. It handles manipulation of the
@@ -247,7 +248,7 @@ class PopupZoomer extends View {
      */
     public void setBitmap(Bitmap bitmap) {
         if (mZoomedBitmap != null) {
-            mZoomedBitmap.recycle();
+            BitmapHelper.releaseBitmap(mZoomedBitmap);
             mZoomedBitmap = null;
         }
         mZoomedBitmap = bitmap;
@@ -298,7 +299,7 @@ class PopupZoomer extends View {
             mOnVisibilityChangedListener.onPopupZoomerHidden(this);
         }
         setVisibility(INVISIBLE);
-        mZoomedBitmap.recycle();
+        BitmapHelper.releaseBitmap(mZoomedBitmap);
         mZoomedBitmap = null;
     }
 
@@ -44,6 +44,20 @@ class GamepadDevice {
     // An identification string for the gamepad.
     private String mDeviceName;
 
+    // Raw data is written by input events and read by the gamepad polling thread. Writers are
+    // serialized by the GamepadList lock and make the sequence odd while they write, the
+    // polling thread reads optimistically and retries if the sequence changed meanwhile.
+    private volatile int mSequence;
+    // Only written by the polling thread, orders its data reads before the validating read of
+    // mSequence.
+    private volatile int mReadFence;
+    // Set by clearData() so that the polling thread resets the mapped data before remapping.
+    private volatile boolean mClearMappedData;
+
+    // State of the last mapping, only accessed by the polling thread.
+    private int mMappedSequence = -1;
+    private long mMappedTimestamp;
+
     // Array of axes ids.
     private int[] mAxes;
 
@@ -67,10 +81,42 @@ class GamepadDevice {
 
     /**
      * Updates the axes and buttons maping of a gamepad device to a standard gamepad format.
+     * Does nothing if no input arrived since the last update. Must only be called from the
+     * gamepad polling thread.
      */
     public void updateButtonsAndAxesMapping() {
-        mIsStandardGamepad = GamepadMappings.mapToStandardGamepad(
-                mAxisValues, mButtonsValues, mRawAxes, mRawButtons, mDeviceName);
+        while (true) {
+            int sequence = mSequence;
+            if (sequence == mMappedSequence) return;
+            if ((sequence & 1) != 0) {
+                // A writer is in the middle of an update.
+                Thread.yield();
+                continue;
+            }
+            if (mClearMappedData) {
+                mClearMappedData = false;
+                Arrays.fill(mAxisValues, 0);
+                Arrays.fill(mButtonsValues, 0);
+            }
+            boolean isStandardGamepad = GamepadMappings.mapToStandardGamepad(
+                    mAxisValues, mButtonsValues, mRawAxes, mRawButtons, mDeviceName);
+            long timestamp = mTimestamp;
+            mReadFence = sequence;
+            // Discard a mapping that may have read a partial update.
+            if (mSequence != sequence) continue;
+            mIsStandardGamepad = isStandardGamepad;
+            mMappedTimestamp = timestamp;
+            mMappedSequence = sequence;
+            return;
+        }
+    }
+
+    private void beginWrite() {
+        mSequence++;
+    }
+
+    private void endWrite() {
+        mSequence++;
     }
 
     /**
@@ -94,9 +140,10 @@ class GamepadDevice {
     public int getIndex() { return mDeviceIndex; }
 
     /**
-     * @return The timestamp when the gamepad device was last interacted.
+     * @return The timestamp when the gamepad device was last interacted, as of the last
+     * {@link #updateButtonsAndAxesMapping()}.
      */
-    public long getTimestamp() { return mTimestamp; }
+    public long getTimestamp() { return mMappedTimestamp; }
 
     /**
      * @return The axes state of the gamepad device.
@@ -113,10 +160,11 @@ class GamepadDevice {
      * paused.
      */
     public void clearData() {
-        Arrays.fill(mAxisValues, 0);
+        beginWrite();
         Arrays.fill(mRawAxes, 0);
-        Arrays.fill(mButtonsValues, 0);
         Arrays.fill(mRawButtons, 0);
+        mClearMappedData = true;
+        endWrite();
     }
 
     /**
@@ -128,6 +176,7 @@ class GamepadDevice {
         if (!GamepadList.isGamepadEvent(event)) return false;
         int keyCode = event.getKeyCode();
         assert keyCode < 256;
+        beginWrite();
         // Button value 0.0 must mean fully unpressed, and 1.0 must mean fully pressed.
         if (event.getAction() == KeyEvent.ACTION_DOWN) {
             mRawButtons[keyCode] = 1.0f;
@@ -135,6 +184,7 @@ class GamepadDevice {
             mRawButtons[keyCode] = 0.0f;
         }
         mTimestamp = event.getEventTime();
+        endWrite();
 
         return true;
     }
@@ -146,12 +196,14 @@ class GamepadDevice {
     public boolean handleMotionEvent(MotionEvent event) {
         // Ignore event if it is not a standard gamepad motion event.
         if (!GamepadList.isGamepadEvent(event)) return false;
+        beginWrite();
         // Update axes values.
         for (int i = 0; i < mAxes.length; i++) {
             int axis = mAxes[i];
             mRawAxes[axis] = event.getAxisValue(axis);
         }
         mTimestamp = event.getEventTime();
+        endWrite();
         return true;
     }
 }
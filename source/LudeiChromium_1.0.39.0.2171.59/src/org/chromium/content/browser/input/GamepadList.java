@@ -32,6 +32,9 @@ public class GamepadList {
     private final Object mLock = new Object();
 
     private final GamepadDevice[] mGamepadDevices = new GamepadDevice[MAX_GAMEPADS];
+    // Copy of mGamepadDevices published on every change, read by the polling thread without
+    // taking mLock.
+    private volatile GamepadDevice[] mGamepadDevicesSnapshot = new GamepadDevice[MAX_GAMEPADS];
     private InputManager mInputManager;
     private int mAttachedToWindowCounter;
     private boolean mIsGamepadAccessed;
@@ -112,6 +115,7 @@ public class GamepadList {
                 for (int i = 0; i < MAX_GAMEPADS; ++i) {
                     mGamepadDevices[i] = null;
                 }
+                publishDevices();
             }
             mInputManager.unregisterInputDeviceListener(mInputDeviceListener);
             mInputManager = null;
@@ -236,6 +240,7 @@ public class GamepadList {
 
         GamepadDevice gamepad = new GamepadDevice(index, inputDevice);
         mGamepadDevices[index] = gamepad;
+        publishDevices();
         return true;
     }
 
@@ -244,6 +249,11 @@ public class GamepadList {
         if (gamepadDevice == null) return; // Not a registered device.
         int index = gamepadDevice.getIndex();
         mGamepadDevices[index] = null;
+        publishDevices();
+    }
+
+    private void publishDevices() {
+        mGamepadDevicesSnapshot = mGamepadDevices.clone();
     }
 
     private static boolean isGamepadDevice(InputDevice inputDevice) {
@@ -292,17 +302,18 @@ public class GamepadList {
     }
 
     private void grabGamepadData(long webGamepadsPtr) {
-        synchronized (mLock) {
-            for (int i = 0; i < MAX_GAMEPADS; i++) {
-                final GamepadDevice device = getDevice(i);
-                if (device != null) {
-                    device.updateButtonsAndAxesMapping();
-                    nativeSetGamepadData(webGamepadsPtr, i, device.isStandardGamepad(), true,
-                            device.getName(), device.getTimestamp(), device.getAxes(),
-                            device.getButtons());
-                } else {
-                    nativeSetGamepadData(webGamepadsPtr, i, false, false, null, 0, null, null);
-                }
+        // Does not block input handling: devices are read from the published snapshot and their
+        // data through GamepadDevice's sequence counter, and only remapped if input arrived.
+        final GamepadDevice[] devices = mGamepadDevicesSnapshot;
+        for (int i = 0; i < MAX_GAMEPADS; i++) {
+            final GamepadDevice device = devices[i];
+            if (device != null) {
+                device.updateButtonsAndAxesMapping();
+                nativeSetGamepadData(webGamepadsPtr, i, device.isStandardGamepad(), true,
+                        device.getName(), device.getTimestamp(), device.getAxes(),
+                        device.getButtons());
+            } else {
+                nativeSetGamepadData(webGamepadsPtr, i, false, false, null, 0, null, null);
             }
         }
     }
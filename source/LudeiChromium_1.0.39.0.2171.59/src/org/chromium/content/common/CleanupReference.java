@@ -6,7 +6,6 @@ package org.chromium.content.common;
 
 import android.os.Handler;
 import android.os.Looper;
-import android.os.Message;
 import android.util.Log;
 
 import org.chromium.base.ThreadUtils;
@@ -14,14 +13,19 @@ import org.chromium.base.TraceEvent;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Handles running cleanup tasks when an object becomes eligible for GC. Cleanup tasks
- * are always executed on the main thread. In general, classes should not have
- * finalizers and likewise should not use this class for the same reasons. The
- * exception is where public APIs exist that require native side resources to be
+ * are executed on the main thread unless another thread affinity is given. In general,
+ * classes should not have finalizers and likewise should not use this class for the same
+ * reasons. The exception is where public APIs exist that require native side resources to be
  * cleaned up in response to java side GC of API objects. (Private/internal
  * interfaces should always favor explicit resource releases / destroy()
  * protocol for this rather than depend on GC to trigger native cleanup).
@@ -35,26 +39,30 @@ public class CleanupReference extends WeakReference<Object> {
 
     private static final boolean DEBUG = false;  // Always check in as false!
 
+    private static final int TRACE_RUN_CLEANUPS = TraceEvent.registerName(
+            "org.chromium.content.common.CleanupReference$LooperDispatcher.run");
+
     // The VM will enqueue CleanupReference instance onto sGcQueue when it becomes eligible for
     // garbage collection (i.e. when all references to the underlying object are nullified).
-    // |sReaperThread| processes this queue by forwarding the references on to the UI thread
-    // (via REMOVE_REF message) to perform cleanup.
+    // |sReaperThread| drains this queue in batches: references without thread affinity are
+    // cleaned up right there, the others are handed to the dispatcher of their looper, which
+    // runs all the cleanups queued for it in a single task.
     private static ReferenceQueue<Object> sGcQueue = new ReferenceQueue<Object>();
-    private static Object sCleanupMonitor = new Object();
 
     private static final Thread sReaperThread = new Thread(TAG) {
         @Override
         public void run() {
             while (true) {
                 try {
+                    // Block for the first reference, then take whatever else the same GC
+                    // enqueued.
                     CleanupReference ref = (CleanupReference) sGcQueue.remove();
-                    if (DEBUG) Log.d(TAG, "removed one ref from GC queue");
-                    synchronized (sCleanupMonitor) {
-                        Message.obtain(LazyHolder.sHandler, REMOVE_REF, ref).sendToTarget();
-                        // Give the UI thread chance to run cleanup before looping around and
-                        // taking the next item from the queue, to avoid Message bombing it.
-                        sCleanupMonitor.wait(500);
-                    }
+                    int count = 0;
+                    do {
+                        reap(ref);
+                        count++;
+                    } while ((ref = (CleanupReference) sGcQueue.poll()) != null);
+                    if (DEBUG) Log.d(TAG, "removed " + count + " refs from GC queue");
                 } catch (Exception e) {
                     Log.e(TAG, "Queue remove exception:", e);
                 }
@@ -67,98 +75,165 @@ public class CleanupReference extends WeakReference<Object> {
         sReaperThread.start();
     }
 
-    // Message's sent in the |what| field to |sHandler|.
-
-    // Add a new reference to sRefs. |msg.obj| is the CleanupReference to add.
-    private static final int ADD_REF = 1;
-    // Remove reference from sRefs. |msg.obj| is the CleanupReference to remove.
-    private static final int REMOVE_REF = 2;
-
     /**
-     * This {@link Handler} polls {@link #sRefs}, looking for cleanup tasks that
-     * are ready to run.
-     * This is lazily initialized as ThreadUtils.getUiThreadLooper() may not be
-     * set yet early in startup.
+     * Runs the cleanups queued for a looper in one task.
      */
-    private static class LazyHolder {
-        static final Handler sHandler = new Handler(ThreadUtils.getUiThreadLooper()) {
-            @Override
-            public void handleMessage(Message msg) {
-                TraceEvent.begin();
-                CleanupReference ref = (CleanupReference) msg.obj;
-                switch (msg.what) {
-                    case ADD_REF:
-                        sRefs.add(ref);
-                        break;
-                    case REMOVE_REF:
-                        ref.runCleanupTaskInternal();
-                        break;
-                    default:
-                        Log.e(TAG, "Bad message=" + msg.what);
-                        break;
-                }
+    private static class LooperDispatcher implements Runnable {
+        private final Handler mHandler;
+        private final ConcurrentLinkedQueue<CleanupReference> mQueue =
+                new ConcurrentLinkedQueue<CleanupReference>();
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+        LooperDispatcher(Looper looper) {
+            mHandler = new Handler(looper);
+        }
+
+        void enqueue(CleanupReference ref) {
+            mQueue.add(ref);
+            if (mScheduled.compareAndSet(false, true)) mHandler.post(this);
+        }
 
-                if (DEBUG) Log.d(TAG, "will try and cleanup; max = " + sRefs.size());
+        boolean isCurrentThread() {
+            return Looper.myLooper() == mHandler.getLooper();
+        }
 
-                synchronized (sCleanupMonitor) {
-                    // Always run the cleanup loop here even when adding or removing refs, to avoid
-                    // falling behind on rapid garbage allocation inner loops.
-                    while ((ref = (CleanupReference) sGcQueue.poll()) != null) {
-                        ref.runCleanupTaskInternal();
-                    }
-                    sCleanupMonitor.notifyAll();
-                }
-                TraceEvent.end();
+        @Override
+        public void run() {
+            TraceEvent.begin(TRACE_RUN_CLEANUPS);
+            // Clear the flag first so that references queued while draining post a new task.
+            mScheduled.set(false);
+            CleanupReference ref;
+            while ((ref = mQueue.poll()) != null) {
+                ref.runCleanupTaskInternal();
             }
-        };
+            TraceEvent.end(TRACE_RUN_CLEANUPS);
+        }
+    }
+
+    private static final ConcurrentHashMap<Looper, LooperDispatcher> sDispatchers =
+            new ConcurrentHashMap<Looper, LooperDispatcher>();
+
+    private static LooperDispatcher getDispatcher(Looper looper) {
+        LooperDispatcher dispatcher = sDispatchers.get(looper);
+        if (dispatcher == null) {
+            LooperDispatcher newDispatcher = new LooperDispatcher(looper);
+            dispatcher = sDispatchers.putIfAbsent(looper, newDispatcher);
+            if (dispatcher == null) dispatcher = newDispatcher;
+        }
+        return dispatcher;
     }
 
     /**
      * Keep a strong reference to {@link CleanupReference} so that it will
      * actually get enqueued.
-     * Only accessed on the UI thread.
      */
-    private static Set<CleanupReference> sRefs = new HashSet<CleanupReference>();
+    private static final Set<CleanupReference> sRefs = Collections.newSetFromMap(
+            new ConcurrentHashMap<CleanupReference, Boolean>());
+
+    // Statistics.
+    private static final AtomicLong sCleanupCount = new AtomicLong();
+    private static volatile long sLastQueueLagNanos;
+    private static volatile long sMaxQueueLagNanos;
 
     private Runnable mCleanupTask;
+    // Where the cleanup task runs, or null to run it on any thread.
+    private final LooperDispatcher mDispatcher;
+    // When the reaper thread took this reference from the GC queue.
+    private volatile long mReapTimeNanos;
 
     /**
      * @param obj the object whose loss of reachability should trigger the
      *            cleanup task.
-     * @param cleanupTask the task to run once obj loses reachability.
+     * @param cleanupTask the task to run on the UI thread once obj loses reachability.
      */
     public CleanupReference(Object obj, Runnable cleanupTask) {
+        this(obj, cleanupTask, ThreadUtils.getUiThreadLooper());
+    }
+
+    /**
+     * @param obj the object whose loss of reachability should trigger the
+     *            cleanup task.
+     * @param cleanupTask the task to run once obj loses reachability.
+     * @param looper the looper of the thread to run the task on, or null if the task may run
+     *               on any thread.
+     */
+    public CleanupReference(Object obj, Runnable cleanupTask, Looper looper) {
         super(obj, sGcQueue);
         if (DEBUG) Log.d(TAG, "+++ CREATED ONE REF");
         mCleanupTask = cleanupTask;
-        handleOnUiThread(ADD_REF);
+        mDispatcher = looper != null ? getDispatcher(looper) : null;
+        sRefs.add(this);
     }
 
     /**
-     * Clear the cleanup task {@link Runnable} so that nothing will be done
+     * Runs the cleanup task now, on the thread it is bound to, so that nothing will be done
      * after garbage collection.
      */
     public void cleanupNow() {
-        handleOnUiThread(REMOVE_REF);
+        if (mDispatcher == null || mDispatcher.isCurrentThread()) {
+            runCleanupTaskInternal();
+        } else {
+            mDispatcher.enqueue(this);
+        }
+    }
+
+    /**
+     * @return the number of registered references not cleaned up yet.
+     */
+    public static int getPendingCount() {
+        return sRefs.size();
+    }
+
+    /**
+     * @return the number of cleanup tasks run so far.
+     */
+    public static long getCleanupCount() {
+        return sCleanupCount.get();
     }
 
-    private void handleOnUiThread(int what) {
-        Message msg = Message.obtain(LazyHolder.sHandler, what, this);
-        if (Looper.myLooper() == msg.getTarget().getLooper()) {
-            msg.getTarget().handleMessage(msg);
-            msg.recycle();
+    /**
+     * @return the time in milliseconds the last collected reference waited between leaving the
+     * GC queue and its cleanup task running.
+     */
+    public static long getLastQueueLagMs() {
+        return TimeUnit.NANOSECONDS.toMillis(sLastQueueLagNanos);
+    }
+
+    /**
+     * @return the highest value of {@link #getLastQueueLagMs()} so far.
+     */
+    public static long getMaxQueueLagMs() {
+        return TimeUnit.NANOSECONDS.toMillis(sMaxQueueLagNanos);
+    }
+
+    private static void reap(CleanupReference ref) {
+        ref.mReapTimeNanos = System.nanoTime();
+        if (ref.mDispatcher == null) {
+            ref.runCleanupTaskInternal();
         } else {
-            msg.sendToTarget();
+            ref.mDispatcher.enqueue(ref);
         }
     }
 
     private void runCleanupTaskInternal() {
         if (DEBUG) Log.d(TAG, "runCleanupTaskInternal");
+        Runnable cleanupTask;
+        synchronized (this) {
+            cleanupTask = mCleanupTask;
+            mCleanupTask = null;
+        }
         sRefs.remove(this);
-        if (mCleanupTask != null) {
+        if (cleanupTask != null) {
             if (DEBUG) Log.i(TAG, "--- CLEANING ONE REF");
-            mCleanupTask.run();
-            mCleanupTask = null;
+            cleanupTask.run();
+            sCleanupCount.incrementAndGet();
+            long reapTime = mReapTimeNanos;
+            if (reapTime != 0) {
+                // Racy but good enough for a statistic.
+                long lag = System.nanoTime() - reapTime;
+                sLastQueueLagNanos = lag;
+                if (lag > sMaxQueueLagNanos) sMaxQueueLagNanos = lag;
+            }
         }
         clear();
     }
@@ -18,11 +18,18 @@ import org.chromium.base.CalledByNative;
 import org.chromium.base.JNINamespace;
 
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 // Owned by its native counterpart declared in audio_record_input.h. Refer to
 // that class for general comments.
+//
+// Captured buffers go through a single-producer/single-consumer ring of direct
+// buffers: the record thread only reads from AudioRecord, and a delivery thread
+// hands the buffers to native, so a slow consumer does not stall the reads.
 @JNINamespace("media")
-class AudioRecordInput {
+public class AudioRecordInput {
     private static final String TAG = "AudioRecordInput";
     // Set to true to enable debug logs. Always check in as false.
     private static final boolean DEBUG = false;
@@ -31,17 +38,42 @@ class AudioRecordInput {
     // could surely be tightened with further testing.
     private static final int HARDWARE_DELAY_MS = 100;
 
+    private static final int MIN_RING_BUFFERS = 2;
+    private static final int MAX_RING_BUFFERS = 16;
+    private static final int DEFAULT_BUFFERING_MS = 60;
+
+    // Amount of audio the ring can hold for a stream created after it was set.
+    private static volatile int sBufferingMs = DEFAULT_BUFFERING_MS;
+    // Process wide accounting of all capture streams.
+    private static final AtomicLong sOverrunCount = new AtomicLong();
+    private static final AtomicLong sUnderrunCount = new AtomicLong();
+    private static final AtomicLong sMaxQueueDelayNanos = new AtomicLong();
+
     private final long mNativeAudioRecordInputStream;
     private final int mSampleRate;
     private final int mChannels;
     private final int mBitsPerSample;
     private final int mHardwareDelayBytes;
     private final boolean mUsePlatformAEC;
+    private final int mBytesPerMs;
     private ByteBuffer mBuffer;
     private AudioRecord mAudioRecord;
     private AudioRecordThread mAudioRecordThread;
+    private DeliveryThread mDeliveryThread;
     private AcousticEchoCanceler mAEC;
 
+    // The ring. Slot i holds buffer number n for n % length == i. Only the record thread
+    // writes mWriteCount and only the delivery thread writes mReadCount.
+    private final ByteBuffer[] mRingBuffers;
+    private final int[] mRingSizes;
+    private final long[] mRingTimestampsNanos;
+    private volatile long mWriteCount;
+    private volatile long mReadCount;
+    // Receives the data read while the ring is full, so that AudioRecord keeps being drained.
+    private ByteBuffer mOverrunBuffer;
+    // The buffer whose address native cached last, only used by the delivery thread.
+    private ByteBuffer mCachedBuffer;
+
     private class AudioRecordThread extends Thread {
         // The "volatile" synchronization technique is discussed here:
         // http://stackoverflow.com/a/106787/299268
@@ -60,10 +92,22 @@ class AudioRecordInput {
             }
 
             while (mKeepAlive) {
-                int bytesRead = mAudioRecord.read(mBuffer, mBuffer.capacity());
+                long writeCount = mWriteCount;
+                boolean full = writeCount - mReadCount >= mRingBuffers.length;
+                int slot = (int) (writeCount % mRingBuffers.length);
+                ByteBuffer buffer = full ? getOverrunBuffer() : mRingBuffers[slot];
+                int bytesRead = mAudioRecord.read(buffer, buffer.capacity());
                 if (bytesRead > 0) {
-                    nativeOnData(mNativeAudioRecordInputStream, bytesRead,
-                                 mHardwareDelayBytes);
+                    if (full) {
+                        // The delivery thread is behind by a whole ring, drop this buffer.
+                        sOverrunCount.incrementAndGet();
+                        continue;
+                    }
+                    if (bytesRead < buffer.capacity()) sUnderrunCount.incrementAndGet();
+                    mRingSizes[slot] = bytesRead;
+                    mRingTimestampsNanos[slot] = System.nanoTime();
+                    mWriteCount = writeCount + 1;
+                    mDeliveryThread.wakeUp();
                 } else {
                     Log.e(TAG, "read failed: " + bytesRead);
                     if (bytesRead == AudioRecord.ERROR_INVALID_OPERATION) {
@@ -93,6 +137,97 @@ class AudioRecordInput {
         }
     }
 
+    private class DeliveryThread extends Thread {
+        private volatile boolean mKeepAlive = true;
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            while (mKeepAlive) {
+                long readCount = mReadCount;
+                if (readCount == mWriteCount) {
+                    // Rechecks the condition after waking up, as wakeUp() may come early.
+                    LockSupport.park(this);
+                    continue;
+                }
+                int slot = (int) (readCount % mRingBuffers.length);
+                ByteBuffer buffer = mRingBuffers[slot];
+                if (buffer != mCachedBuffer) {
+                    nativeCacheDirectBufferAddress(mNativeAudioRecordInputStream, buffer);
+                    mCachedBuffer = buffer;
+                }
+                // Report the time the buffer waited in the ring as part of the delay.
+                long queueDelayNanos = System.nanoTime() - mRingTimestampsNanos[slot];
+                updateMaxQueueDelay(queueDelayNanos);
+                int queueDelayBytes =
+                        (int) (TimeUnit.NANOSECONDS.toMillis(queueDelayNanos) * mBytesPerMs);
+                nativeOnData(mNativeAudioRecordInputStream, mRingSizes[slot],
+                             mHardwareDelayBytes + queueDelayBytes);
+                mReadCount = readCount + 1;
+            }
+        }
+
+        void wakeUp() {
+            LockSupport.unpark(this);
+        }
+
+        public void joinDeliveryThread() {
+            mKeepAlive = false;
+            wakeUp();
+            while (isAlive()) {
+                try {
+                    join();
+                } catch (InterruptedException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets how much audio, in milliseconds, capture streams opened afterwards may buffer
+     * between reading it from the device and delivering it. Larger values survive longer
+     * stalls of the consumer at the cost of latency when it does stall.
+     */
+    public static void setBufferingMs(int bufferingMs) {
+        sBufferingMs = bufferingMs;
+    }
+
+    /**
+     * @return the number of buffers dropped because the consumer was a whole ring behind.
+     */
+    public static long getOverrunCount() {
+        return sOverrunCount.get();
+    }
+
+    /**
+     * @return the number of reads that returned less than a full buffer.
+     */
+    public static long getUnderrunCount() {
+        return sUnderrunCount.get();
+    }
+
+    /**
+     * @return the longest time in milliseconds a captured buffer waited to be delivered.
+     */
+    public static long getMaxQueueDelayMs() {
+        return TimeUnit.NANOSECONDS.toMillis(sMaxQueueDelayNanos.get());
+    }
+
+    private static void updateMaxQueueDelay(long delayNanos) {
+        while (true) {
+            long max = sMaxQueueDelayNanos.get();
+            if (delayNanos <= max || sMaxQueueDelayNanos.compareAndSet(max, delayNanos)) return;
+        }
+    }
+
+    private ByteBuffer getOverrunBuffer() {
+        if (mOverrunBuffer == null) {
+            mOverrunBuffer = ByteBuffer.allocateDirect(mBuffer.capacity());
+        }
+        return mOverrunBuffer;
+    }
+
     @CalledByNative
     private static AudioRecordInput createAudioRecordInput(long nativeAudioRecordInputStream,
             int sampleRate, int channels, int bitsPerSample, int bytesPerBuffer,
@@ -108,6 +243,8 @@ class AudioRecordInput {
         mChannels = channels;
         mBitsPerSample = bitsPerSample;
         mHardwareDelayBytes = HARDWARE_DELAY_MS * sampleRate / 1000 * bitsPerSample / 8;
+        // Only used to convert the queue delay, which is added to the hardware delay.
+        mBytesPerMs = sampleRate / 1000 * bitsPerSample / 8;
         mUsePlatformAEC = usePlatformAEC;
 
         // We use a direct buffer so that the native class can have access to
@@ -123,6 +260,20 @@ class AudioRecordInput {
         // or deny the advantage of this approach, as the values for
         // nativeOnData() were not stable across runs.
         nativeCacheDirectBufferAddress(mNativeAudioRecordInputStream, mBuffer);
+        mCachedBuffer = mBuffer;
+
+        long bytesPerSecond = (long) sampleRate * bitsPerSample / 8;
+        int bufferMs = bytesPerSecond > 0
+                ? (int) Math.max(1, bytesPerBuffer * 1000L / bytesPerSecond) : 1;
+        int ringLength = (sBufferingMs + bufferMs - 1) / bufferMs;
+        ringLength = Math.max(MIN_RING_BUFFERS, Math.min(ringLength, MAX_RING_BUFFERS));
+        mRingBuffers = new ByteBuffer[ringLength];
+        mRingBuffers[0] = mBuffer;
+        for (int i = 1; i < ringLength; i++) {
+            mRingBuffers[i] = ByteBuffer.allocateDirect(bytesPerBuffer);
+        }
+        mRingSizes = new int[ringLength];
+        mRingTimestampsNanos = new long[ringLength];
     }
 
     @SuppressLint("NewApi")
@@ -209,6 +360,10 @@ class AudioRecordInput {
             // start() was already called.
             return;
         }
+        mWriteCount = 0;
+        mReadCount = 0;
+        mDeliveryThread = new DeliveryThread();
+        mDeliveryThread.start();
         mAudioRecordThread = new AudioRecordThread();
         mAudioRecordThread.start();
     }
@@ -221,6 +376,9 @@ class AudioRecordInput {
         }
         mAudioRecordThread.joinRecordThread();
         mAudioRecordThread = null;
+        // Buffers still in the ring are dropped, native must not be called after stop().
+        mDeliveryThread.joinDeliveryThread();
+        mDeliveryThread = null;
     }
 
     @SuppressLint("NewApi")
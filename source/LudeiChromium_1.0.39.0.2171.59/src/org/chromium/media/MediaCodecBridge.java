@@ -23,6 +23,7 @@ import org.chromium.base.JNINamespace;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 /**
@@ -72,13 +73,28 @@ class MediaCodecBridge {
     private String mMime;
     private boolean mAdaptivePlaybackSupported;
 
+    // Results of the dequeue calls are read by native right after the call returns, on the
+    // thread that made it, so each bridge reuses a single instance of each instead of
+    // allocating one per frame.
+    private final DequeueInputResult mDequeueInputResult = new DequeueInputResult();
+    private final DequeueOutputResult mDequeueOutputResult = new DequeueOutputResult();
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    // Codec capabilities do not change while the process runs, so queries of MediaCodecList and
+    // default codec names are answered once. Guarded by sCodecCacheLock.
+    private static final Object sCodecCacheLock = new Object();
+    private static CodecInfo[] sCodecsInfo;
+    private static final Map<String, String> sDecoderNames = new HashMap<String, String>();
+    private static final Map<String, String> sDefaultCodecNames = new HashMap<String, String>();
+
     private static class DequeueInputResult {
-        private final int mStatus;
-        private final int mIndex;
+        private int mStatus;
+        private int mIndex;
 
-        private DequeueInputResult(int status, int index) {
+        private DequeueInputResult set(int status, int index) {
             mStatus = status;
             mIndex = index;
+            return this;
         }
 
         @CalledByNative("DequeueInputResult")
@@ -114,14 +130,14 @@ class MediaCodecBridge {
     }
 
     private static class DequeueOutputResult {
-        private final int mStatus;
-        private final int mIndex;
-        private final int mFlags;
-        private final int mOffset;
-        private final long mPresentationTimeMicroseconds;
-        private final int mNumBytes;
-
-        private DequeueOutputResult(int status, int index, int flags, int offset,
+        private int mStatus;
+        private int mIndex;
+        private int mFlags;
+        private int mOffset;
+        private long mPresentationTimeMicroseconds;
+        private int mNumBytes;
+
+        private DequeueOutputResult set(int status, int index, int flags, int offset,
                 long presentationTimeMicroseconds, int numBytes) {
             mStatus = status;
             mIndex = index;
@@ -129,6 +145,7 @@ class MediaCodecBridge {
             mOffset = offset;
             mPresentationTimeMicroseconds = presentationTimeMicroseconds;
             mNumBytes = numBytes;
+            return this;
         }
 
         @CalledByNative("DequeueOutputResult")
@@ -156,6 +173,14 @@ class MediaCodecBridge {
     @SuppressWarnings("deprecation")
     @CalledByNative
     private static CodecInfo[] getCodecsInfo() {
+        synchronized (sCodecCacheLock) {
+            if (sCodecsInfo == null) sCodecsInfo = queryCodecsInfo();
+            return sCodecsInfo;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static CodecInfo[] queryCodecsInfo() {
         // Return the first (highest-priority) codec for each MIME type.
         Map<String, CodecInfo> encoderInfoMap = new HashMap<String, CodecInfo>();
         Map<String, CodecInfo> decoderInfoMap = new HashMap<String, CodecInfo>();
@@ -187,6 +212,11 @@ class MediaCodecBridge {
     @SuppressWarnings("deprecation")
     @CalledByNative
     private static String getDefaultCodecName(String mime, int direction) {
+        String key = direction + ":" + mime;
+        synchronized (sCodecCacheLock) {
+            String cached = sDefaultCodecNames.get(key);
+            if (cached != null) return cached;
+        }
         String codecName = "";
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
             try {
@@ -203,11 +233,28 @@ class MediaCodecBridge {
                         mime + ", direction: " + direction, e);
             }
         }
+        // Creation may fail because of a temporary lack of resources, so only remember names.
+        if (!codecName.isEmpty()) {
+            synchronized (sCodecCacheLock) {
+                sDefaultCodecNames.put(key, codecName);
+            }
+        }
         return codecName;
     }
 
-    @SuppressWarnings("deprecation")
     private static String getDecoderNameForMime(String mime) {
+        String key = mime.toLowerCase(Locale.US);
+        synchronized (sCodecCacheLock) {
+            // A null value records that no decoder supports the type.
+            if (sDecoderNames.containsKey(key)) return sDecoderNames.get(key);
+            String decoderName = queryDecoderNameForMime(mime);
+            sDecoderNames.put(key, decoderName);
+            return decoderName;
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static String queryDecoderNameForMime(String mime) {
         int count = MediaCodecList.getCodecCount();
         for (int i = 0; i < count; ++i) {
             MediaCodecInfo info = MediaCodecList.getCodecInfoAt(i);
@@ -327,7 +374,7 @@ class MediaCodecBridge {
         } catch (Exception e) {
             Log.e(TAG, "Failed to dequeue input buffer", e);
         }
-        return new DequeueInputResult(status, index);
+        return mDequeueInputResult.set(status, index);
     }
 
     @CalledByNative
@@ -467,7 +514,8 @@ class MediaCodecBridge {
     @SuppressWarnings("deprecation")
     @CalledByNative
     private DequeueOutputResult dequeueOutputBuffer(long timeoutUs) {
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        MediaCodec.BufferInfo info = mBufferInfo;
+        info.set(0, 0, 0, 0);
         int status = MEDIA_CODEC_ERROR;
         int index = -1;
         try {
@@ -497,7 +545,7 @@ class MediaCodecBridge {
             Log.e(TAG, "Failed to dequeue output buffer", e);
         }
 
-        return new DequeueOutputResult(
+        return mDequeueOutputResult.set(
                 status, index, info.flags, info.offset, info.presentationTimeUs, info.size);
     }
 
@@ -8,6 +8,8 @@ import android.content.Context;
 import android.graphics.ImageFormat;
 import android.util.Log;
 
+import java.util.concurrent.TimeUnit;
+
 import java.util.ArrayList;
 import java.util.List;
 
@@ -77,8 +79,30 @@ public class VideoCaptureAndroid extends VideoCapture {
 
     private int mExpectedFrameSize;
     private static final int NUM_CAPTURE_BUFFERS = 3;
+    private static final int MIN_CAPTURE_BUFFERS = 2;
+    private static final int MAX_CAPTURE_BUFFERS = 6;
+    // The display rotation is only sampled this often instead of on every frame.
+    private static final long ROTATION_REFRESH_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(250);
     private static final String TAG = "VideoCaptureAndroid";
 
+    // Buffer pool and frame pacing state, guarded by mPreviewBufferLock.
+    // Number of buffers requested with setCaptureBufferCount(), 0 to adapt it to the time
+    // native takes to consume a frame.
+    private int mFixedBufferCount;
+    private int mTargetBufferCount = NUM_CAPTURE_BUFFERS;
+    private int mAllocatedBufferCount;
+    private long mFrameIntervalNs;
+    private long mLastDeliveredFrameNs;
+    private long mAverageFrameLatencyNs;
+    private long mLastRotationCheckNs;
+    private int mDisplayRotation;
+
+    // Statistics, only written on the preview callback thread.
+    private volatile long mDeliveredFrameCount;
+    private volatile long mDroppedFrameCount;
+    private volatile long mLastFrameLatencyNs;
+    private volatile long mMaxFrameLatencyNs;
+
     static CaptureFormat[] getDeviceSupportedFormats(int id) {
         android.hardware.Camera camera;
         try {
@@ -160,13 +184,72 @@ public class VideoCaptureAndroid extends VideoCapture {
         BuggyDeviceHack.applyMinDimensions(mCaptureFormat);
     }
 
+    /**
+     * Sets the number of preview buffers queued to the camera.
+     * @param count The number of buffers, or 0 to adapt it to how long native takes to consume a
+     *              frame.
+     */
+    public void setCaptureBufferCount(int count) {
+        mPreviewBufferLock.lock();
+        try {
+            mFixedBufferCount = count <= 0 ? 0
+                    : Math.max(MIN_CAPTURE_BUFFERS, Math.min(count, MAX_CAPTURE_BUFFERS));
+            if (mFixedBufferCount > 0) mTargetBufferCount = mFixedBufferCount;
+        } finally {
+            mPreviewBufferLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of frames delivered to native.
+     */
+    public long getDeliveredFrameCount() {
+        return mDeliveredFrameCount;
+    }
+
+    /**
+     * @return the number of frames dropped before reaching native because they arrived faster
+     * than the capture frame rate.
+     */
+    public long getDroppedFrameCount() {
+        return mDroppedFrameCount;
+    }
+
+    /**
+     * @return the time in microseconds native took to consume the last frame.
+     */
+    public long getLastFrameLatencyUs() {
+        return TimeUnit.NANOSECONDS.toMicros(mLastFrameLatencyNs);
+    }
+
+    /**
+     * @return the highest value of {@link #getLastFrameLatencyUs()} so far.
+     */
+    public long getMaxFrameLatencyUs() {
+        return TimeUnit.NANOSECONDS.toMicros(mMaxFrameLatencyNs);
+    }
+
     @Override
     protected void allocateBuffers() {
         mExpectedFrameSize = mCaptureFormat.mWidth * mCaptureFormat.mHeight *
                 ImageFormat.getBitsPerPixel(mCaptureFormat.mPixelFormat) / 8;
-        for (int i = 0; i < NUM_CAPTURE_BUFFERS; i++) {
-            byte[] buffer = new byte[mExpectedFrameSize];
-            mCamera.addCallbackBuffer(buffer);
+        mPreviewBufferLock.lock();
+        try {
+            mFrameIntervalNs = mCaptureFormat.mFramerate > 0
+                    ? TimeUnit.SECONDS.toNanos(1) / mCaptureFormat.mFramerate : 0;
+            mLastDeliveredFrameNs = 0;
+            mLastRotationCheckNs = 0;
+            mAllocatedBufferCount = 0;
+            addMissingBuffers(mCamera);
+        } finally {
+            mPreviewBufferLock.unlock();
+        }
+    }
+
+    private void addMissingBuffers(android.hardware.Camera camera) {
+        while (mAllocatedBufferCount < mTargetBufferCount) {
+            camera.addCallbackBuffer(new byte[mExpectedFrameSize]);
+            mAllocatedBufferCount++;
         }
     }
 
@@ -183,25 +266,64 @@ public class VideoCaptureAndroid extends VideoCapture {
                 return;
             }
             if (data.length == mExpectedFrameSize) {
-                int rotation = getDeviceOrientation();
-                if (rotation != mDeviceOrientation) {
-                    mDeviceOrientation = rotation;
+                long now = System.nanoTime();
+                // Frames arriving faster than the capture frame rate, e.g. in a burst after
+                // native was slow, are dropped before they are copied over JNI.
+                if (mLastDeliveredFrameNs != 0
+                        && now - mLastDeliveredFrameNs < mFrameIntervalNs * 3 / 4) {
+                    mDroppedFrameCount++;
+                    return;
                 }
+                mLastDeliveredFrameNs = now;
+                int rotation = getDisplayRotation(now);
                 if (mCameraFacing == android.hardware.Camera.CameraInfo.CAMERA_FACING_BACK) {
                     rotation = 360 - rotation;
                 }
                 rotation = (mCameraOrientation + rotation) % 360;
                 nativeOnFrameAvailable(mNativeVideoCaptureDeviceAndroid,
                         data, mExpectedFrameSize, rotation);
+                mDeliveredFrameCount++;
+                recordFrameLatency(System.nanoTime() - now);
             }
         } finally {
+            boolean requeue = camera != null;
+            if (requeue && mAllocatedBufferCount > mTargetBufferCount) {
+                // The pool shrank, let this buffer go.
+                mAllocatedBufferCount--;
+                requeue = false;
+            }
+            if (camera != null && mIsRunning) addMissingBuffers(camera);
             mPreviewBufferLock.unlock();
-            if (camera != null) {
+            if (requeue) {
                 camera.addCallbackBuffer(data);
             }
         }
     }
 
+    private int getDisplayRotation(long now) {
+        if (mLastRotationCheckNs == 0
+                || now - mLastRotationCheckNs > ROTATION_REFRESH_INTERVAL_NS) {
+            mLastRotationCheckNs = now;
+            mDisplayRotation = getDeviceOrientation();
+            mDeviceOrientation = mDisplayRotation;
+        }
+        return mDisplayRotation;
+    }
+
+    /**
+     * Tracks how long native holds a frame and, unless the count was fixed, keeps enough buffers
+     * queued for the camera to continue while native is busy.
+     */
+    private void recordFrameLatency(long latencyNs) {
+        mLastFrameLatencyNs = latencyNs;
+        if (latencyNs > mMaxFrameLatencyNs) mMaxFrameLatencyNs = latencyNs;
+        mAverageFrameLatencyNs += (latencyNs - mAverageFrameLatencyNs) / 8;
+        if (mFixedBufferCount > 0 || mFrameIntervalNs == 0) return;
+        long framesInFlight = (mAverageFrameLatencyNs + mFrameIntervalNs - 1) / mFrameIntervalNs;
+        mTargetBufferCount = (int) Math.max(MIN_CAPTURE_BUFFERS,
+                Math.min(MIN_CAPTURE_BUFFERS + framesInFlight, MAX_CAPTURE_BUFFERS));
+    }
+
     // TODO(wjia): investigate whether reading from texture could give better
     // performance and frame rate, using onFrameAvailable().
 }
@@ -13,6 +13,7 @@ import android.net.http.X509TrustManagerExtensions;
 import android.os.Build;
 import android.security.KeyChain;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.Pair;
 
 import org.chromium.base.JNINamespace;
@@ -36,6 +37,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
@@ -110,7 +112,12 @@ public class X509Util {
         }
     }
 
-    private static CertificateFactory sCertificateFactory;
+    /**
+     * CertificateFactory instances are not thread safe; each verifying thread gets its own so
+     * that chains can be parsed concurrently.
+     */
+    private static final ThreadLocal<CertificateFactory> sCertificateFactory =
+            new ThreadLocal<CertificateFactory>();
 
     private static final String OID_TLS_SERVER_AUTH = "1.3.6.1.5.5.7.3.1";
     private static final String OID_ANY_EKU = "2.5.29.37.0";
@@ -123,7 +130,7 @@ public class X509Util {
     /**
      * Trust manager backed up by the read-only system certificate store.
      */
-    private static X509TrustManagerImplementation sDefaultTrustManager;
+    private static volatile X509TrustManagerImplementation sDefaultTrustManager;
 
     /**
      * BroadcastReceiver that listens to change in the system keystore to invalidate certificate
@@ -135,7 +142,7 @@ public class X509Util {
      * Trust manager backed up by a custom certificate store. We need such manager to plant test
      * root CA to the trust store in testing.
      */
-    private static X509TrustManagerImplementation sTestTrustManager;
+    private static volatile X509TrustManagerImplementation sTestTrustManager;
     private static KeyStore sTestKeyStore;
 
     /**
@@ -157,7 +164,45 @@ public class X509Util {
      * decoding the root from disk on every verification. Mirrors a similar in-memory cache in
      * Conscrypt's X509TrustManager implementation.
      */
-    private static Set<Pair<X500Principal, PublicKey>> sSystemTrustAnchorCache;
+    private static volatile Set<Pair<X500Principal, PublicKey>> sSystemTrustAnchorCache;
+
+    /**
+     * Names of the files in sSystemCertificateDirectory, listed once so that isKnownRoot does not
+     * probe the file system for every candidate alias.
+     */
+    private static Set<String> sSystemCertificateAliases;
+
+    /**
+     * Successful verifications, keyed by the SHA-256 of the DER chain, the auth type and the host.
+     * Entries are only served within the validity window of every certificate involved and are
+     * dropped whenever a trust store changes.
+     */
+    private static final int VERIFICATION_CACHE_SIZE = 64;
+    private static final LruCache<String, CachedVerification> sVerificationCache =
+            new LruCache<String, CachedVerification>(VERIFICATION_CACHE_SIZE);
+
+    private static final class CachedVerification {
+        final AndroidCertVerifyResult mResult;
+        final long mNotBefore;
+        final long mNotAfter;
+
+        CachedVerification(AndroidCertVerifyResult result, long notBefore, long notAfter) {
+            mResult = result;
+            mNotBefore = notBefore;
+            mNotAfter = notAfter;
+        }
+    }
+
+    /**
+     * Incremented whenever a trust store changes, so that verifications that raced with the
+     * change are not cached.
+     */
+    private static volatile int sTrustStoreGeneration;
+
+    /**
+     * True once ensureInitialized() completed, so that verifications skip the lock.
+     */
+    private static volatile boolean sInitialized;
 
     /**
      * True if the system key store has been loaded. If the "AndroidCAStore" KeyStore instance
@@ -182,10 +227,8 @@ public class X509Util {
      */
     private static void ensureInitialized() throws CertificateException,
             KeyStoreException, NoSuchAlgorithmException {
+        if (sInitialized) return;
         synchronized (sLock) {
-            if (sCertificateFactory == null) {
-                sCertificateFactory = CertificateFactory.getInstance("X.509");
-            }
             if (sDefaultTrustManager == null) {
                 sDefaultTrustManager = X509Util.createTrustManager(null);
             }
@@ -199,6 +242,10 @@ public class X509Util {
                     }
                     sSystemCertificateDirectory =
                             new File(System.getenv("ANDROID_ROOT") + "/etc/security/cacerts");
+                    String[] aliases = sSystemCertificateDirectory.list();
+                    sSystemCertificateAliases = aliases != null
+                            ? new HashSet<String>(Arrays.asList(aliases))
+                            : Collections.<String>emptySet();
                 } catch (KeyStoreException e) {
                     // Could not load AndroidCAStore. Continue anyway; isKnownRoot will always
                     // return false.
@@ -208,7 +255,7 @@ public class X509Util {
                 sLoadedSystemKeyStore = true;
             }
             if (sSystemTrustAnchorCache == null) {
-                sSystemTrustAnchorCache = new HashSet<Pair<X500Principal, PublicKey>>();
+                sSystemTrustAnchorCache = newTrustAnchorCache();
             }
             if (sTestKeyStore == null) {
                 sTestKeyStore = KeyStore.getInstance(KeyStore.getDefaultType());
@@ -226,7 +273,22 @@ public class X509Util {
                 nativeGetApplicationContext().registerReceiver(sTrustStorageListener,
                         new IntentFilter(KeyChain.ACTION_STORAGE_CHANGED));
             }
+            sInitialized = true;
+        }
+    }
+
+    private static Set<Pair<X500Principal, PublicKey>> newTrustAnchorCache() {
+        return Collections.newSetFromMap(
+                new ConcurrentHashMap<Pair<X500Principal, PublicKey>, Boolean>());
+    }
+
+    private static CertificateFactory getCertificateFactory() throws CertificateException {
+        CertificateFactory factory = sCertificateFactory.get();
+        if (factory == null) {
+            factory = CertificateFactory.getInstance("X.509");
+            sCertificateFactory.set(factory);
         }
+        return factory;
     }
 
     /**
@@ -265,6 +327,8 @@ public class X509Util {
     private static void reloadTestTrustManager() throws KeyStoreException,
             NoSuchAlgorithmException {
         sTestTrustManager = X509Util.createTrustManager(sTestKeyStore);
+        sTrustStoreGeneration++;
+        sVerificationCache.evictAll();
     }
 
     /**
@@ -272,10 +336,17 @@ public class X509Util {
      */
     private static void reloadDefaultTrustManager() throws KeyStoreException,
             NoSuchAlgorithmException, CertificateException {
-        sDefaultTrustManager = null;
-        sSystemTrustAnchorCache = null;
-        nativeNotifyKeyChainChanged();
         ensureInitialized();
+        // Build the new trust manager before publishing it, so that concurrent verifications
+        // keep using the previous one instead of seeing none.
+        X509TrustManagerImplementation trustManager = X509Util.createTrustManager(null);
+        synchronized (sLock) {
+            sDefaultTrustManager = trustManager;
+            sSystemTrustAnchorCache = newTrustAnchorCache();
+            sTrustStoreGeneration++;
+            sVerificationCache.evictAll();
+        }
+        nativeNotifyKeyChainChanged();
     }
 
     /**
@@ -284,7 +355,7 @@ public class X509Util {
     public static X509Certificate createCertificateFromBytes(byte[] derBytes) throws
             CertificateException, KeyStoreException, NoSuchAlgorithmException {
         ensureInitialized();
-        return (X509Certificate) sCertificateFactory.generateCertificate(
+        return (X509Certificate) getCertificateFactory().generateCertificate(
                 new ByteArrayInputStream(derBytes));
     }
 
@@ -337,9 +408,10 @@ public class X509Util {
 
         // Check the in-memory cache first; avoid decoding the anchor from disk
         // if it has been seen before.
+        Set<Pair<X500Principal, PublicKey>> anchorCache = sSystemTrustAnchorCache;
         Pair<X500Principal, PublicKey> key =
             new Pair<X500Principal, PublicKey>(root.getSubjectX500Principal(), root.getPublicKey());
-        if (sSystemTrustAnchorCache.contains(key))
+        if (anchorCache.contains(key))
             return true;
 
         // Note: It is not sufficient to call sSystemKeyStore.getCertificiateAlias. If the server
@@ -355,10 +427,13 @@ public class X509Util {
         String hash = hashPrincipal(root.getSubjectX500Principal());
         for (int i = 0; true; i++) {
             String alias = hash + '.' + i;
-            if (!new File(sSystemCertificateDirectory, alias).exists())
+            if (!sSystemCertificateAliases.contains(alias))
                 break;
 
-            Certificate anchor = sSystemKeyStore.getCertificate("system:" + alias);
+            Certificate anchor;
+            synchronized (sSystemKeyStore) {
+                anchor = sSystemKeyStore.getCertificate("system:" + alias);
+            }
             // It is possible for this to return null if the user deleted a trust anchor. In
             // that case, the certificate remains in the system directory but is also added to
             // another file. Continue iterating as there may be further collisions after the
@@ -377,7 +452,7 @@ public class X509Util {
             X509Certificate anchorX509 = (X509Certificate) anchor;
             if (root.getSubjectX500Principal().equals(anchorX509.getSubjectX500Principal()) &&
                 root.getPublicKey().equals(anchorX509.getPublicKey())) {
-                sSystemTrustAnchorCache.add(key);
+                anchorCache.add(key);
                 return true;
             }
         }
@@ -436,6 +511,15 @@ public class X509Util {
             return new AndroidCertVerifyResult(CertVerifyStatusAndroid.VERIFY_FAILED);
         }
 
+        String cacheKey = verificationCacheKey(certChain, authType, host);
+        long now = System.currentTimeMillis();
+        // LruCache does not accept null keys.
+        CachedVerification cached = cacheKey != null ? sVerificationCache.get(cacheKey) : null;
+        if (cached != null) {
+            if (now >= cached.mNotBefore && now <= cached.mNotAfter) return cached.mResult;
+            sVerificationCache.remove(cacheKey);
+        }
+
         X509Certificate[] serverCertificates = new X509Certificate[certChain.length];
         try {
             for (int i = 0; i < certChain.length; ++i) {
@@ -463,38 +547,87 @@ public class X509Util {
             return new AndroidCertVerifyResult(CertVerifyStatusAndroid.VERIFY_FAILED);
         }
 
-        synchronized (sLock) {
-            // If no trust manager was found, fail without crashing on the null pointer.
-            if (sDefaultTrustManager == null)
-                return new AndroidCertVerifyResult(CertVerifyStatusAndroid.VERIFY_FAILED);
+        // The trust managers are thread safe and swapped atomically on trust store changes, so
+        // verifications run concurrently without holding sLock.
+        int generation = sTrustStoreGeneration;
+        X509TrustManagerImplementation defaultTrustManager = sDefaultTrustManager;
+        X509TrustManagerImplementation testTrustManager = sTestTrustManager;
+        // If no trust manager was found, fail without crashing on the null pointer.
+        if (defaultTrustManager == null)
+            return new AndroidCertVerifyResult(CertVerifyStatusAndroid.VERIFY_FAILED);
 
-            List<X509Certificate> verifiedChain;
+        List<X509Certificate> verifiedChain;
+        try {
+            verifiedChain = defaultTrustManager.checkServerTrusted(serverCertificates,
+                                                                   authType, host);
+        } catch (CertificateException eDefaultManager) {
             try {
-                verifiedChain = sDefaultTrustManager.checkServerTrusted(serverCertificates,
-                                                                        authType, host);
-            } catch (CertificateException eDefaultManager) {
-                try {
-                    verifiedChain = sTestTrustManager.checkServerTrusted(serverCertificates,
-                                                                         authType, host);
-                } catch (CertificateException eTestManager) {
-                    // Neither of the trust managers confirms the validity of the certificate chain,
-                    // log the error message returned by the system trust manager.
-                    Log.i(TAG, "Failed to validate the certificate chain, error: " +
-                              eDefaultManager.getMessage());
-                    return new AndroidCertVerifyResult(
-                            CertVerifyStatusAndroid.VERIFY_NO_TRUSTED_ROOT);
-                }
+                verifiedChain = testTrustManager.checkServerTrusted(serverCertificates,
+                                                                    authType, host);
+            } catch (CertificateException eTestManager) {
+                // Neither of the trust managers confirms the validity of the certificate chain,
+                // log the error message returned by the system trust manager.
+                Log.i(TAG, "Failed to validate the certificate chain, error: " +
+                          eDefaultManager.getMessage());
+                return new AndroidCertVerifyResult(
+                        CertVerifyStatusAndroid.VERIFY_NO_TRUSTED_ROOT);
             }
+        }
 
-            boolean isIssuedByKnownRoot = false;
-            if (verifiedChain.size() > 0) {
-                X509Certificate root = verifiedChain.get(verifiedChain.size() - 1);
-                isIssuedByKnownRoot = isKnownRoot(root);
+        boolean isIssuedByKnownRoot = false;
+        if (verifiedChain.size() > 0) {
+            X509Certificate root = verifiedChain.get(verifiedChain.size() - 1);
+            isIssuedByKnownRoot = isKnownRoot(root);
+        }
+
+        AndroidCertVerifyResult result = new AndroidCertVerifyResult(
+                CertVerifyStatusAndroid.VERIFY_OK, isIssuedByKnownRoot, verifiedChain);
+        if (cacheKey != null) {
+            long notBefore = Long.MIN_VALUE;
+            long notAfter = Long.MAX_VALUE;
+            for (X509Certificate certificate : serverCertificates) {
+                notBefore = Math.max(notBefore, certificate.getNotBefore().getTime());
+                notAfter = Math.min(notAfter, certificate.getNotAfter().getTime());
+            }
+            for (X509Certificate certificate : verifiedChain) {
+                notBefore = Math.max(notBefore, certificate.getNotBefore().getTime());
+                notAfter = Math.min(notAfter, certificate.getNotAfter().getTime());
             }
+            synchronized (sLock) {
+                if (generation == sTrustStoreGeneration) {
+                    sVerificationCache.put(cacheKey,
+                            new CachedVerification(result, notBefore, notAfter));
+                }
+            }
+        }
+        return result;
+    }
 
-            return new AndroidCertVerifyResult(CertVerifyStatusAndroid.VERIFY_OK,
-                                               isIssuedByKnownRoot, verifiedChain);
+    /**
+     * @return the key of a chain in sVerificationCache, or null if it can not be computed.
+     */
+    private static String verificationCacheKey(byte[][] certChain, String authType, String host) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+        for (byte[] der : certChain) {
+            if (der == null) return null;
+            // Length prefix, so that different splits of the same bytes do not collide.
+            digest.update((byte) (der.length >>> 24));
+            digest.update((byte) (der.length >>> 16));
+            digest.update((byte) (der.length >>> 8));
+            digest.update((byte) der.length);
+            digest.update(der);
+        }
+        byte[] hash = digest.digest();
+        StringBuilder key = new StringBuilder(hash.length * 2 + 64);
+        for (byte b : hash) {
+            key.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
         }
+        return key.append(' ').append(authType).append(' ').append(host).toString();
     }
 
     public static void setDisableNativeCodeForTest(boolean disabled) {
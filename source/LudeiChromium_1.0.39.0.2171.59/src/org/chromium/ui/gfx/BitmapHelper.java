@@ -4,23 +4,257 @@
 
 package org.chromium.ui.gfx;
 
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Build;
+import android.util.LruCache;
 
 import org.chromium.base.CalledByNative;
+import org.chromium.base.CommandLine;
 import org.chromium.base.JNINamespace;
+import org.chromium.base.MemoryPressureListener;
+import org.chromium.base.SysUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Helper class to decode and sample down bitmap resources.
+ *
+ * Bitmaps handed back with {@link #releaseBitmap(Bitmap)} are kept in a pool and reused by
+ * {@link #createBitmap(int, int, int)} and as decode targets. Decoded drawable resources are
+ * kept in an LRU cache keyed by name and requested size. Both are bounded by a memory budget,
+ * smaller on low end devices, and emptied under memory pressure.
  */
 @JNINamespace("gfx")
 public class BitmapHelper {
+    private static final int POOL_BUDGET_BYTES = 8 * 1024 * 1024;
+    private static final int LOW_END_POOL_BUDGET_BYTES = 2 * 1024 * 1024;
+    private static final int DECODE_CACHE_BUDGET_BYTES = 4 * 1024 * 1024;
+    private static final int LOW_END_DECODE_CACHE_BUDGET_BYTES = 1024 * 1024;
+
+    private static final Object sLock = new Object();
+    // Released mutable bitmaps, oldest first. Guarded by sLock.
+    private static final ArrayList<Bitmap> sPool = new ArrayList<Bitmap>();
+    private static int sPoolBudgetBytes = -1;
+    private static int sPooledBytes;
+    private static long sPoolHitCount;
+    private static long sPoolMissCount;
+
+    private static DecodeCache sDecodeCache;
+    // Resource ids and original sizes of the drawables decoded so far, guarded by sLock. A
+    // resource id of 0 records a name that does not exist.
+    private static final Map<String, Integer> sResourceIds = new HashMap<String, Integer>();
+    private static final Map<Integer, int[]> sResourceSizes = new HashMap<Integer, int[]>();
+
+    private static class DecodeCache extends LruCache<String, Bitmap> {
+        DecodeCache(int maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getRowBytes() * value.getHeight();
+        }
+    }
+
+    static {
+        MemoryPressureListener.addObserver(new MemoryPressureListener.Observer() {
+            @Override
+            public void onMemoryPressure(int level) {
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+                        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+                    clearCaches();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the memory budgets of the bitmap pool and of the decode cache, replacing the
+     * defaults picked from {@link SysUtils#isLowEndDevice()}.
+     */
+    public static void setMemoryBudget(int poolBytes, int decodeCacheBytes) {
+        synchronized (sLock) {
+            sPoolBudgetBytes = poolBytes;
+            trimPool(poolBytes);
+            sDecodeCache = decodeCacheBytes > 0 ? new DecodeCache(decodeCacheBytes) : null;
+        }
+    }
+
+    /**
+     * Hands a bitmap that is no longer used back for reuse. The caller must not use the bitmap
+     * afterwards. Immutable bitmaps and bitmaps beyond the pool budget are recycled.
+     */
+    public static void releaseBitmap(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        synchronized (sLock) {
+            ensureBudgets();
+            int bytes = getByteCount(bitmap);
+            if (bitmap.isMutable() && bytes <= sPoolBudgetBytes) {
+                trimPool(sPoolBudgetBytes - bytes);
+                sPool.add(bitmap);
+                sPooledBytes += bytes;
+                return;
+            }
+        }
+        bitmap.recycle();
+    }
+
+    /**
+     * Releases all pooled and cached bitmaps.
+     */
+    public static void clearCaches() {
+        synchronized (sLock) {
+            trimPool(0);
+            if (sDecodeCache != null) sDecodeCache.evictAll();
+        }
+    }
+
+    public static long getPoolHitCount() {
+        synchronized (sLock) {
+            return sPoolHitCount;
+        }
+    }
+
+    public static long getPoolMissCount() {
+        synchronized (sLock) {
+            return sPoolMissCount;
+        }
+    }
+
+    /**
+     * @return the bytes held by pooled bitmaps.
+     */
+    public static int getPooledBytes() {
+        synchronized (sLock) {
+            return sPooledBytes;
+        }
+    }
+
+    public static int getDecodeCacheHitCount() {
+        DecodeCache cache = getDecodeCache();
+        return cache != null ? cache.hitCount() : 0;
+    }
+
+    public static int getDecodeCacheMissCount() {
+        DecodeCache cache = getDecodeCache();
+        return cache != null ? cache.missCount() : 0;
+    }
+
+    /**
+     * @return the bytes held by cached decoded drawables.
+     */
+    public static int getDecodeCacheBytes() {
+        DecodeCache cache = getDecodeCache();
+        return cache != null ? cache.size() : 0;
+    }
+
+    private static DecodeCache getDecodeCache() {
+        synchronized (sLock) {
+            ensureBudgets();
+            return sDecodeCache;
+        }
+    }
+
+    // Must be called with sLock held.
+    private static void ensureBudgets() {
+        if (sPoolBudgetBytes >= 0) return;
+        // SysUtils needs the command line, which native callers always have.
+        boolean lowEnd = CommandLine.isInitialized() && SysUtils.isLowEndDevice();
+        sPoolBudgetBytes = lowEnd ? LOW_END_POOL_BUDGET_BYTES : POOL_BUDGET_BYTES;
+        sDecodeCache = new DecodeCache(
+                lowEnd ? LOW_END_DECODE_CACHE_BUDGET_BYTES : DECODE_CACHE_BUDGET_BYTES);
+    }
+
+    // Must be called with sLock held.
+    private static void trimPool(int maxBytes) {
+        while (sPooledBytes > maxBytes && !sPool.isEmpty()) {
+            Bitmap bitmap = sPool.remove(0);
+            sPooledBytes -= getByteCount(bitmap);
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Takes a pooled bitmap of the given dimensions and config, or on KitKat and later one large
+     * enough to be reconfigured to them.
+     * @return the bitmap, with undefined content, or null if the pool has none.
+     */
+    private static Bitmap takePooledBitmap(int width, int height, Bitmap.Config config) {
+        synchronized (sLock) {
+            for (int i = sPool.size() - 1; i >= 0; i--) {
+                Bitmap bitmap = sPool.get(i);
+                if (bitmap.getWidth() == width && bitmap.getHeight() == height
+                        && bitmap.getConfig() == config) {
+                    return removePooledBitmap(i);
+                }
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                int bytes = width * height * getBytesPerPixel(config);
+                for (int i = sPool.size() - 1; i >= 0; i--) {
+                    if (getByteCount(sPool.get(i)) >= bytes) {
+                        Bitmap bitmap = removePooledBitmap(i);
+                        reconfigure(bitmap, width, height, config);
+                        return bitmap;
+                    }
+                }
+            }
+            sPoolMissCount++;
+            return null;
+        }
+    }
+
+    // Must be called with sLock held.
+    private static Bitmap removePooledBitmap(int index) {
+        Bitmap bitmap = sPool.remove(index);
+        sPooledBytes -= getByteCount(bitmap);
+        sPoolHitCount++;
+        return bitmap;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static void reconfigure(Bitmap bitmap, int width, int height, Bitmap.Config config) {
+        bitmap.reconfigure(width, height, config);
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int getByteCount(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            return bitmap.getAllocationByteCount();
+        }
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        switch (config) {
+            case ALPHA_8:
+                return 1;
+            case ARGB_4444:
+            case RGB_565:
+                return 2;
+            case ARGB_8888:
+            default:
+                return 4;
+        }
+    }
+
     @CalledByNative
     private static Bitmap createBitmap(int width,
                                       int height,
                                       int bitmapFormatValue) {
         Bitmap.Config bitmapConfig = getBitmapConfigForFormat(bitmapFormatValue);
+        Bitmap bitmap = takePooledBitmap(width, height, bitmapConfig);
+        if (bitmap != null) {
+            // New bitmaps are cleared, so are reused ones.
+            bitmap.eraseColor(Color.TRANSPARENT);
+            return bitmap;
+        }
         return Bitmap.createBitmap(width, height, bitmapConfig);
     }
 
@@ -37,17 +271,81 @@ public class BitmapHelper {
     private static Bitmap decodeDrawableResource(String name,
                                                  int reqWidth,
                                                  int reqHeight) {
+        // Native copies the pixels of the returned bitmap, so a cached one can be shared.
+        String key = name + "|" + reqWidth + "x" + reqHeight;
+        DecodeCache cache = getDecodeCache();
+        if (cache != null) {
+            Bitmap cached = cache.get(key);
+            if (cached != null && !cached.isRecycled()) return cached;
+        }
+
         Resources res = Resources.getSystem();
-        int resId = res.getIdentifier(name, null, null);
+        int resId = getResourceId(res, name);
         if (resId == 0) return null;
 
         final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeResource(res, resId, options);
+        int[] size;
+        synchronized (sLock) {
+            size = sResourceSizes.get(resId);
+        }
+        if (size == null) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeResource(res, resId, options);
+            size = new int[] {options.outWidth, options.outHeight};
+            synchronized (sLock) {
+                sResourceSizes.put(resId, size);
+            }
+        } else {
+            options.outWidth = size[0];
+            options.outHeight = size[1];
+        }
 
         options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
         options.inJustDecodeBounds = false;
         options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        Bitmap bitmap = decodeResource(res, resId, options, size);
+        if (bitmap != null && cache != null) cache.put(key, bitmap);
+        return bitmap;
+    }
+
+    private static int getResourceId(Resources res, String name) {
+        synchronized (sLock) {
+            Integer resId = sResourceIds.get(name);
+            if (resId != null) return resId;
+        }
+        int resId = res.getIdentifier(name, null, null);
+        synchronized (sLock) {
+            sResourceIds.put(name, resId);
+        }
+        return resId;
+    }
+
+    /**
+     * Decodes into a pooled bitmap where the platform allows it: one large enough on KitKat and
+     * later, one of the exact decoded size and no sampling before.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static Bitmap decodeResource(Resources res, int resId,
+            BitmapFactory.Options options, int[] size) {
+        Bitmap reusable = null;
+        int width = (size[0] + options.inSampleSize - 1) / options.inSampleSize;
+        int height = (size[1] + options.inSampleSize - 1) / options.inSampleSize;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT
+                || (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                        && options.inSampleSize == 1)) {
+            reusable = takePooledBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        if (reusable != null) {
+            options.inBitmap = reusable;
+            options.inMutable = true;
+            try {
+                return BitmapFactory.decodeResource(res, resId, options);
+            } catch (IllegalArgumentException e) {
+                // The bitmap could not be reused for this image, decode without it.
+                options.inBitmap = null;
+                releaseBitmap(reusable);
+            }
+        }
         return BitmapFactory.decodeResource(res, resId, options);
     }
 